@@ -50,3 +50,5 @@ LOCAL_SRC_FILES := \
 include frameworks/base/packages/SettingsLib/common.mk
 
 include $(BUILD_PACKAGE)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
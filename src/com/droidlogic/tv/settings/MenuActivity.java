@@ -25,6 +25,12 @@ import android.support.v17.leanback.widget.ListRowPresenter;
 import android.support.v17.leanback.widget.ClassPresenterSelector;
 import android.support.v17.leanback.widget.ObjectAdapter;
 
+import com.droidlogic.tv.settings.widget.BitmapDownloader;
+import com.droidlogic.tv.settings.widget.DrawableDownloader;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * Activity showing a menu of settings.
  */
@@ -68,4 +74,12 @@ public abstract class MenuActivity extends Activity {
         mBrowseFragment.setBadgeDrawable(getBadgeImage());
         mBrowseFragment.setHeadersState(BrowseFragment.HEADERS_DISABLED);
     }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        // adb shell dumpsys activity <component>
+        DrawableDownloader.dumpIfCreated(prefix, writer);
+        BitmapDownloader.getInstance(this).dump(prefix, writer);
+    }
 }
@@ -239,6 +239,14 @@ public class Action implements Parcelable {
         return mChecked;
     }
 
+    /**
+     * @return true if the indicator is a drawable resource, which takes precedence over
+     * {@link #getIconUri()}
+     */
+    public boolean hasDrawableResource() {
+        return mDrawableResource != NO_DRAWABLE;
+    }
+
     public Uri getIconUri() {
         return mIconUri;
     }
@@ -42,8 +42,8 @@ import android.widget.TextView;
 import com.droidlogic.tv.settings.R;
 import com.droidlogic.tv.settings.widget.BitmapDownloader;
 import com.droidlogic.tv.settings.widget.BitmapWorkerOptions;
-import com.droidlogic.tv.settings.widget.ScrollAdapter;
 import com.droidlogic.tv.settings.widget.ScrollAdapterBase;
+import com.droidlogic.tv.settings.widget.ScrollAdapterPrefetch;
 import com.droidlogic.tv.settings.widget.ScrollAdapterView;
 import com.droidlogic.tv.settings.widget.BitmapDownloader.BitmapCallback;
 import com.droidlogic.tv.settings.widget.ScrollAdapterView.OnScrollListener;
@@ -54,7 +54,7 @@ import java.util.List;
 /**
  * Adapter class which creates actions.
  */
-public class ActionAdapter extends BaseAdapter implements ScrollAdapter,
+public class ActionAdapter extends BaseAdapter implements ScrollAdapterPrefetch,
         OnScrollListener, View.OnKeyListener, View.OnClickListener {
     private static final String TAG = "ActionAdapter";
 
@@ -125,6 +125,8 @@ public class ActionAdapter extends BaseAdapter implements ScrollAdapter,
     private ScrollAdapterView mScrollAdapterView;
     private final int mAnimationDuration;
     private View mSelectedView = null;
+    // width icons are loaded at, for prefetching
+    private int mIndicatorWidth;
 
     public ActionAdapter(Context context) {
         super();
@@ -311,6 +313,10 @@ public class ActionAdapter extends BaseAdapter implements ScrollAdapter,
     }
 
     private void setIndicator(final ImageView indicatorView, Action action) {
+        final BitmapDownloader downloader = BitmapDownloader.getInstance(mContext);
+        // the view may be rebound before the previous icon arrives
+        downloader.cancelDownload(indicatorView.getTag(R.id.imageDownloadCallback));
+        indicatorView.setTag(R.id.imageDownloadCallback, null);
 
         Drawable indicator = action.getIndicator(mContext);
         if (indicator != null) {
@@ -321,25 +327,40 @@ public class ActionAdapter extends BaseAdapter implements ScrollAdapter,
             if (iconUri != null) {
                 indicatorView.setVisibility(View.INVISIBLE);
 
-                BitmapDownloader.getInstance(mContext).getBitmap(new BitmapWorkerOptions.Builder(
-                        mContext).resource(iconUri)
-                        .width(indicatorView.getLayoutParams().width).build(),
-                        new BitmapCallback() {
-                            @Override
-                            public void onBitmapRetrieved(Bitmap bitmap) {
-                                if (bitmap != null) {
-                                    indicatorView.setVisibility(View.VISIBLE);
-                                    indicatorView.setImageBitmap(bitmap);
-                                    fadeIn(indicatorView);
-                                }
-                            }
-                        });
+                BitmapCallback callback = new BitmapCallback() {
+                    @Override
+                    public void onBitmapRetrieved(Bitmap bitmap) {
+                        indicatorView.setTag(R.id.imageDownloadCallback, null);
+                        if (bitmap != null) {
+                            indicatorView.setVisibility(View.VISIBLE);
+                            indicatorView.setImageBitmap(bitmap);
+                            fadeIn(indicatorView);
+                        }
+                    }
+                };
+                // ScrollAdapterView cancels the tagged callback when the view is recycled
+                indicatorView.setTag(R.id.imageDownloadCallback, callback);
+                mIndicatorWidth = indicatorView.getLayoutParams().width;
+                downloader.getBitmap(new BitmapWorkerOptions.Builder(mContext).resource(iconUri)
+                        .width(mIndicatorWidth).build(), callback);
             } else {
                 indicatorView.setVisibility(View.GONE);
             }
         }
     }
 
+    @Override
+    public BitmapWorkerOptions getPrefetchOptions(int adapterIndex) {
+        final Action action = mActions.get(adapterIndex);
+        final Uri iconUri = action.getIconUri();
+        // the width is known once a view has loaded an icon
+        if (mIndicatorWidth <= 0 || iconUri == null || action.hasDrawableResource()) {
+            return null;
+        }
+        return new BitmapWorkerOptions.Builder(mContext).resource(iconUri)
+                .width(mIndicatorWidth).build();
+    }
+
     private void fadeIn(View v) {
         v.setAlpha(0f);
         ObjectAnimator alphaAnimator = ObjectAnimator.ofFloat(v, "alpha", 1f);
@@ -34,9 +34,13 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.animation.Interpolator;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 import com.droidlogic.tv.settings.R;
+import com.droidlogic.tv.settings.widget.BitmapDownloader;
+import com.droidlogic.tv.settings.widget.DrawableDownloader;
 
 /**
  * A DialogActivity has 2 fragments, a content fragment and a list fragment.
@@ -241,6 +245,14 @@ public abstract class DialogActivity extends Activity
         mLastBackStackCount = count;
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        // adb shell dumpsys activity <component>
+        DrawableDownloader.dumpIfCreated(prefix, writer);
+        BitmapDownloader.getInstance(this).dump(prefix, writer);
+    }
+
     @Override
     public void onActionClicked(Action action) {
         Intent intent = action.getIntent();
@@ -23,9 +23,15 @@ import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.text.TextUtils;
+import android.util.Log;
 
 import java.util.HashMap;
 import java.util.LinkedHashSet;
@@ -33,7 +39,13 @@ import java.util.LinkedHashSet;
 import com.droidlogic.tv.settings.widget.BitmapWorkerOptions;
 
 /**
- * AccountImageChangeObserver class...
+ * Notifies the change uris of account images when the picture of the account changes.
+ * <p>
+ * Registration and change detection run on a background thread, looking up the contact of an
+ * account is a query of the contacts database.  A contact sync changes a contact many times in
+ * a row, changes of an account are coalesced until no change arrived for
+ * {@link #CHANGE_DEBOUNCE_MS}, at most {@link #MAX_CHANGE_DELAY_MS} after the first one.  The
+ * picture is then queried once and all change uris of the account are notified together.
  */
 public class AccountImageChangeObserver {
     private static final String TAG = "AccountImageChangeObserver";
@@ -41,22 +53,51 @@ public class AccountImageChangeObserver {
 
     private static final String GOOGLE_ACCOUNT_TYPE = "com.google";
 
+    // quiet time after a change of the contact before its picture is checked
+    private static final long CHANGE_DEBOUNCE_MS = 500;
+    // a burst of changes is checked at the latest this long after its first change
+    private static final long MAX_CHANGE_DELAY_MS = 2000;
+
+    private static final int MSG_REGISTER = 1;
+    private static final int MSG_CHECK_CHANGE = 2;
+
     private static final Object sObserverInstanceLock = new Object();
     private static AccountImageChangeObserver sObserver;
 
+    /**
+     * Change uri to register for an account, handed to the background thread.
+     */
+    private static class Registration {
+        final Context mContext;
+        final String mAccountName;
+        final Uri mChangeNotifyUri;
+
+        Registration(Context context, String accountName, Uri changeNotifyUri) {
+            mContext = context;
+            mAccountName = accountName;
+            mChangeNotifyUri = changeNotifyUri;
+        }
+    }
+
+    /**
+     * Observes the contact of one account, all methods run on the background thread.
+     */
     private class ContactChangeContentObserver extends ContentObserver {
         private final Account mWatchedAccount;
         private final LinkedHashSet<Uri> mUrisToNotify;
-        private final Object mLock = new Object();
         private final Context mContext;
         private String mCurrentImageUri;
+        // uptime of the first change not checked yet
+        private long mFirstChangeTime;
+        private int mChangeCount;
 
         public ContactChangeContentObserver(Context context, Account watchedAccount) {
-            super(null);
+            super(mHandler);
             mWatchedAccount = watchedAccount;
             mUrisToNotify = new LinkedHashSet<>();
             mContext = context;
             mCurrentImageUri = AccountImageHelper.getAccountPictureUri(mContext, mWatchedAccount);
+            AccountImageUriCache.getInstance().put(mWatchedAccount.name, mCurrentImageUri);
         }
 
         @Override
@@ -65,13 +106,31 @@ public class AccountImageChangeObserver {
         }
 
         public void addUriToNotifyList(Uri uri) {
-            synchronized (mLock) {
-                mUrisToNotify.add(uri);
-            }
+            mUrisToNotify.add(uri);
         }
 
         @Override
         public void onChange(boolean selfChange) {
+            final long now = SystemClock.uptimeMillis();
+            if (!mHandler.hasMessages(MSG_CHECK_CHANGE, this)) {
+                mFirstChangeTime = now;
+                mChangeCount = 0;
+            }
+            mChangeCount++;
+            mHandler.removeMessages(MSG_CHECK_CHANGE, this);
+            mHandler.sendMessageAtTime(mHandler.obtainMessage(MSG_CHECK_CHANGE, this),
+                    Math.min(now + CHANGE_DEBOUNCE_MS, mFirstChangeTime + MAX_CHANGE_DELAY_MS));
+        }
+
+        /**
+         * Queries the picture once for a burst of changes, notifies all change uris of the
+         * account if it changed.
+         */
+        void checkChange() {
+            if (DEBUG) {
+                Log.d(TAG, "checking " + mWatchedAccount.name + " after " + mChangeCount
+                        + " changes");
+            }
             String newUri = AccountImageHelper.getAccountPictureUri(mContext, mWatchedAccount);
 
             if (TextUtils.equals(mCurrentImageUri, newUri)) {
@@ -79,18 +138,20 @@ public class AccountImageChangeObserver {
                 return;
             }
 
-            synchronized (mLock) {
-                for (Uri uri : mUrisToNotify) {
-                    mContext.getContentResolver().notifyChange(uri, null);
-                }
-
-                mCurrentImageUri = newUri;
+            // loads started from now on use the new picture
+            AccountImageUriCache.getInstance().put(mWatchedAccount.name, newUri);
+            mCurrentImageUri = newUri;
+            for (Uri uri : mUrisToNotify) {
+                mContext.getContentResolver().notifyChange(uri, null);
             }
         }
     }
 
+    // account name -> observer, only accessed on the background thread
     private final HashMap<String, ContactChangeContentObserver> mObserverMap;
 
+    private final Handler mHandler;
+
 
     /**
      * get the singleton AccountImageChangeObserver for the application
@@ -108,9 +169,28 @@ public class AccountImageChangeObserver {
 
     public AccountImageChangeObserver() {
         mObserverMap = new HashMap<>();
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_REGISTER:
+                        register((Registration) msg.obj);
+                        break;
+                    case MSG_CHECK_CHANGE:
+                        ((ContactChangeContentObserver) msg.obj).checkChange();
+                        break;
+                }
+            }
+        };
     }
 
-    public synchronized void registerChangeUriIfPresent(BitmapWorkerOptions options) {
+    /**
+     * Registers the change notify uri of an account image uri, it is notified when the picture
+     * of the account changes.  Returns right away, the account is looked up in background.
+     */
+    public void registerChangeUriIfPresent(BitmapWorkerOptions options) {
         Uri imageUri = options.getResourceUri();
         // Only register URIs that match the Account Image URI schema, and
         // have a change notify URI specified.
@@ -127,34 +207,39 @@ public class AccountImageChangeObserver {
             Context context = options.getContext();
 
             if (accountName != null && context != null) {
-                Account thisAccount = null;
-                for (Account account : AccountManager.get(context).
-                        getAccountsByType(GOOGLE_ACCOUNT_TYPE)) {
-                    if (account.name.equals(accountName)) {
-                        thisAccount = account;
-                        break;
-                    }
-                }
-                if (thisAccount != null) {
-                    ContactChangeContentObserver observer;
-
-                    if (mObserverMap.containsKey(thisAccount.name)) {
-                        observer = mObserverMap.get(thisAccount.name);
-                        if (observer != null) {
-                            observer.addUriToNotifyList(changeNotifUri);
-                        }
-                    } else {
-                        long contactId = getContactIdForAccount(context, thisAccount);
-                        if (contactId != -1) {
-                            Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI,
-                                    contactId);
-                            observer = new ContactChangeContentObserver(context, thisAccount);
-                            mObserverMap.put(thisAccount.name, observer);
-                            observer.addUriToNotifyList(changeNotifUri);
-                            context.getContentResolver().registerContentObserver(contactUri, false,
-                                    observer);
-                        }
-                    }
+                mHandler.obtainMessage(MSG_REGISTER, new Registration(
+                        context.getApplicationContext(), accountName, changeNotifUri))
+                        .sendToTarget();
+            }
+        }
+    }
+
+    private void register(Registration registration) {
+        ContactChangeContentObserver observer = mObserverMap.get(registration.mAccountName);
+        if (observer != null) {
+            observer.addUriToNotifyList(registration.mChangeNotifyUri);
+            return;
+        }
+        final Context context = registration.mContext;
+        Account thisAccount = null;
+        for (Account account : AccountManager.get(context).
+                getAccountsByType(GOOGLE_ACCOUNT_TYPE)) {
+            if (account.name.equals(registration.mAccountName)) {
+                thisAccount = account;
+                break;
+            }
+        }
+        if (thisAccount != null) {
+            long contactId = getContactIdForAccount(context, thisAccount);
+            if (contactId != -1) {
+                Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
+                observer = new ContactChangeContentObserver(context, thisAccount);
+                mObserverMap.put(thisAccount.name, observer);
+                observer.addUriToNotifyList(registration.mChangeNotifyUri);
+                context.getContentResolver().registerContentObserver(contactUri, false,
+                        observer);
+                if (DEBUG) {
+                    Log.d(TAG, "observing " + contactUri + " for " + thisAccount.name);
                 }
             }
         }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.util;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import com.droidlogic.tv.settings.widget.BitmapWorkerOptions;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Cache of the picture uri of accounts, by account name.
+ * <p>
+ * Resolving an account image uri scans the accounts of {@link AccountManager} and queries the
+ * contacts database, see {@link AccountImageHelper#getAccountPictureUri}.  It is done once on
+ * the worker thread of the first load, later loads of the account image are a lookup followed
+ * by a normal load of the picture.  {@link AccountImageChangeObserver} updates the entry when
+ * the contact changes, entries of removed accounts are dropped.
+ */
+public final class AccountImageUriCache {
+
+    private static final String TAG = "AccountImageUriCache";
+    private static final boolean DEBUG = false;
+
+    private static final String GOOGLE_ACCOUNT_TYPE = "com.google";
+
+    private static final Object sInstanceLock = new Object();
+    private static AccountImageUriCache sInstance;
+
+    // account name -> picture uri
+    private final HashMap<String, String> mPictureUris = new HashMap<>();
+
+    private boolean mListening;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mResolveCount;
+
+    private final OnAccountsUpdateListener mAccountsListener = new OnAccountsUpdateListener() {
+        @Override
+        public void onAccountsUpdated(Account[] accounts) {
+            HashSet<String> names = new HashSet<>();
+            for (Account account : accounts) {
+                names.add(account.name);
+            }
+            synchronized (AccountImageUriCache.this) {
+                Iterator<String> it = mPictureUris.keySet().iterator();
+                while (it.hasNext()) {
+                    if (!names.contains(it.next())) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * get the singleton AccountImageUriCache for the application
+     */
+    public static AccountImageUriCache getInstance() {
+        if (sInstance == null) {
+            synchronized (sInstanceLock) {
+                if (sInstance == null) {
+                    sInstance = new AccountImageUriCache();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private AccountImageUriCache() {
+    }
+
+    /**
+     * @return picture uri of the account, null if not resolved yet
+     */
+    public synchronized String get(String accountName) {
+        final String pictureUri = mPictureUris.get(accountName);
+        if (pictureUri != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return pictureUri;
+    }
+
+    /**
+     * Sets the picture uri of the account, null removes the entry.
+     */
+    public synchronized void put(String accountName, String pictureUri) {
+        if (DEBUG) {
+            Log.d(TAG, "put " + accountName + " " + pictureUri);
+        }
+        if (pictureUri == null) {
+            mPictureUris.remove(accountName);
+        } else {
+            mPictureUris.put(accountName, pictureUri);
+        }
+    }
+
+    public synchronized void invalidate(String accountName) {
+        mPictureUris.remove(accountName);
+    }
+
+    public synchronized void clear() {
+        mPictureUris.clear();
+    }
+
+    /**
+     * Finds the picture uri of the account and caches it, does not use the cached entry.
+     * Queries AccountManager and the contacts database, do not call it on the UI thread.
+     * @return picture uri, null if there is no such account
+     */
+    public String resolve(Context context, String accountName) {
+        Account thisAccount = null;
+        for (Account account : AccountManager.get(context).getAccountsByType(
+                GOOGLE_ACCOUNT_TYPE)) {
+            if (account.name.equals(accountName)) {
+                thisAccount = account;
+                break;
+            }
+        }
+        if (thisAccount == null) {
+            return null;
+        }
+        final String pictureUri = AccountImageHelper.getAccountPictureUri(context, thisAccount);
+        synchronized (this) {
+            mResolveCount++;
+            if (pictureUri != null) {
+                mPictureUris.put(accountName, pictureUri);
+            }
+            if (!mListening) {
+                mListening = true;
+                AccountManager.get(context.getApplicationContext())
+                        .addOnAccountsUpdatedListener(mAccountsListener, null, false);
+            }
+        }
+        return pictureUri;
+    }
+
+    /**
+     * @return options loading the picture of the account image uri in options, null if the
+     * picture uri is not cached
+     */
+    public BitmapWorkerOptions getPictureOptions(BitmapWorkerOptions options) {
+        final String accountName = UriUtils.getAccountName(options.getResourceUri());
+        if (accountName == null || options.getContext() == null) {
+            return null;
+        }
+        final String pictureUri = get(accountName);
+        return pictureUri == null ? null : buildPictureOptions(options, pictureUri);
+    }
+
+    /**
+     * Same as {@link #getPictureOptions}, resolving the picture uri if it is not cached.  Do not
+     * call it on the UI thread.
+     * @return null if the account does not exist
+     */
+    public BitmapWorkerOptions resolvePictureOptions(BitmapWorkerOptions options) {
+        final String accountName = UriUtils.getAccountName(options.getResourceUri());
+        final Context context = options.getContext();
+        if (accountName == null || context == null) {
+            return null;
+        }
+        String pictureUri = get(accountName);
+        if (pictureUri == null) {
+            pictureUri = resolve(context, accountName);
+        }
+        return pictureUri == null ? null : buildPictureOptions(options, pictureUri);
+    }
+
+    private static BitmapWorkerOptions buildPictureOptions(BitmapWorkerOptions options,
+            String pictureUri) {
+        return new BitmapWorkerOptions.Builder(options.getContext())
+                .width(options.getWidth())
+                .height(options.getHeight())
+                .cacheFlag(options.getCacheFlag())
+                .bitmapConfig(options.getBitmapConfig())
+                .autoBitmapConfig(options.isAutoBitmapConfig())
+                .priority(options.getPriority())
+                .resource(Uri.parse(pictureUri))
+                .build();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "AccountImageUriCache[accounts=%d,hits=%d,misses=%d,resolves=%d]",
+                mPictureUris.size(), mHitCount, mMissCount, mResolveCount);
+    }
+}
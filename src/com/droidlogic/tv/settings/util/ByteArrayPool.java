@@ -18,22 +18,77 @@ package com.droidlogic.tv.settings.util;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Pools of byte arrays in 4KB and 16KB classes.
+ * <p>
+ * Each thread keeps a small magazine of chunks per class, so the decoder threads don't
+ * contend on a lock for every chunk.  A magazine holds at most {@link #MAGAZINE_BYTES}, it is
+ * private to its thread and collected with it, so magazines are not counted against the
+ * ceiling.  Full or empty magazines exchange chunks with a shared depot, the depots of all
+ * classes together never hold more than {@link #MAX_DEPOT_BYTES}; chunks over it are dropped
+ * for GC.
+ */
 public final class ByteArrayPool {
 
+    public static final int CHUNK4K = 4 * 1024;
     public static final int CHUNK16K = 16 * 1024;
-    public static final int DEFAULT_MAX_NUM = 8;
 
-    private final static ByteArrayPool sChunk16K = new ByteArrayPool(CHUNK16K, DEFAULT_MAX_NUM);
+    /** bytes cached per thread and size class */
+    public static final int MAGAZINE_BYTES = 64 * 1024;
+
+    /** ceiling of bytes held by the depots of all classes */
+    public static final int MAX_DEPOT_BYTES = 1024 * 1024;
+
+    // bytes held in the depots of all classes
+    private static final AtomicLong sDepotBytes = new AtomicLong();
+    // bumped by clearPools(), magazines of an older generation are emptied on next use
+    private static volatile int sGeneration;
+
+    private final static ByteArrayPool sChunk4K = new ByteArrayPool(CHUNK4K);
+    private final static ByteArrayPool sChunk16K = new ByteArrayPool(CHUNK16K);
+
+    /**
+     * Chunks cached by one thread.
+     */
+    private static final class Magazine {
+        final ArrayList<byte[]> mChunks;
+        int mGeneration;
+
+        Magazine(int maxNum) {
+            mChunks = new ArrayList<>(maxNum);
+            mGeneration = sGeneration;
+        }
+    }
 
-    private final ArrayList<byte[]> mCachedBuf;
+    private final ThreadLocal<Magazine> mMagazine;
+    private final ArrayList<byte[]> mDepot = new ArrayList<>();
     private final int mChunkSize;
     private final int mMaxNum;
 
-    private ByteArrayPool(int chunkSize, int maxNum) {
+    private final AtomicInteger mAllocationCount = new AtomicInteger();
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mDropCount = new AtomicInteger();
+
+    private ByteArrayPool(int chunkSize) {
         mChunkSize = chunkSize;
-        mMaxNum = maxNum;
-        mCachedBuf = new ArrayList<byte[]>(mMaxNum);
+        mMaxNum = Math.max(1, MAGAZINE_BYTES / chunkSize);
+        mMagazine = new ThreadLocal<Magazine>() {
+            @Override
+            protected Magazine initialValue() {
+                return new Magazine(mMaxNum);
+            }
+        };
+    }
+
+    /**
+     * get singleton of 4KB byte[] pool
+     */
+    public static ByteArrayPool get4KBPool() {
+        return sChunk4K;
     }
 
     /**
@@ -43,45 +98,148 @@ public final class ByteArrayPool {
         return sChunk16K;
     }
 
+    /**
+     * @return pool of the smallest class holding at least size bytes, null if size is larger
+     * than all classes
+     */
+    public static ByteArrayPool getPool(int size) {
+        if (size <= CHUNK4K) {
+            return sChunk4K;
+        } else if (size <= CHUNK16K) {
+            return sChunk16K;
+        }
+        return null;
+    }
+
+    /**
+     * Empties the shared depots of all classes for a memory trim.  Magazines of other threads
+     * are emptied the next time their thread uses the pool, until then they hold at most
+     * {@link #MAGAZINE_BYTES} per thread and class.
+     * @return bytes of the depots released for GC
+     */
+    public static long clearPools() {
+        sGeneration++;
+        return sChunk4K.clearDepot() + sChunk16K.clearDepot();
+    }
+
+    private long clearDepot() {
+        synchronized (mDepot) {
+            final long bytes = (long) mDepot.size() * mChunkSize;
+            sDepotBytes.addAndGet(-bytes);
+            mDepot.clear();
+            return bytes;
+        }
+    }
+
+    private static boolean reserve(int bytes) {
+        while (true) {
+            final long current = sDepotBytes.get();
+            if (current + bytes > MAX_DEPOT_BYTES) {
+                return false;
+            }
+            if (sDepotBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return magazine of the calling thread, emptied if the pools were cleared since its
+     * last use
+     */
+    private ArrayList<byte[]> getMagazine() {
+        final Magazine magazine = mMagazine.get();
+        if (magazine.mGeneration != sGeneration) {
+            magazine.mChunks.clear();
+            magazine.mGeneration = sGeneration;
+        }
+        return magazine.mChunks;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
     public byte[] allocateChunk() {
-        synchronized (mCachedBuf) {
-            int size = mCachedBuf.size();
+        final ArrayList<byte[]> magazine = getMagazine();
+        int size = magazine.size();
+        if (size > 0) {
+            mHitCount.incrementAndGet();
+            return magazine.remove(size - 1);
+        }
+        synchronized (mDepot) {
+            size = mDepot.size();
             if (size > 0) {
-                return mCachedBuf.remove(size - 1);
+                sDepotBytes.addAndGet(-mChunkSize);
+                mHitCount.incrementAndGet();
+                return mDepot.remove(size - 1);
             }
-            return new byte[mChunkSize];
         }
+        mAllocationCount.incrementAndGet();
+        return new byte[mChunkSize];
     }
 
+    /**
+     * clear the depot and the magazine of calling thread
+     */
     public void clear() {
-        synchronized (mCachedBuf) {
-            mCachedBuf.clear();
-        }
+        getMagazine().clear();
+        clearDepot();
     }
 
     public void releaseChunk(byte[] buf) {
         if (buf == null || buf.length != mChunkSize) {
             return;
         }
-        synchronized (mCachedBuf) {
-            if (mCachedBuf.size() < mMaxNum) {
-                mCachedBuf.add(buf);
+        final ArrayList<byte[]> magazine = getMagazine();
+        if (magazine.size() < mMaxNum) {
+            magazine.add(buf);
+            return;
+        }
+        synchronized (mDepot) {
+            if (reserve(mChunkSize)) {
+                mDepot.add(buf);
+                return;
             }
         }
+        mDropCount.incrementAndGet();
     }
 
     public void releaseChunks(List<byte[]> bufs) {
-        synchronized (mCachedBuf) {
-            for (int i = 0, c = bufs.size(); i < c; i++) {
-                if (mCachedBuf.size() == mMaxNum) {
-                    break;
-                }
-                byte[] buf = bufs.get(i);
-                if (buf != null && buf.length == mChunkSize) {
-                    mCachedBuf.add(bufs.get(i));
-                }
-            }
+        for (int i = 0, c = bufs.size(); i < c; i++) {
+            releaseChunk(bufs.get(i));
         }
     }
 
+    /**
+     * @return number of chunks allocated because the pool was empty
+     */
+    public int getAllocationCount() {
+        return mAllocationCount.get();
+    }
+
+    /**
+     * @return number of chunks served from a magazine or the depot
+     */
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return number of chunks released to the pool and dropped because of the depot ceiling
+     */
+    public int getDropCount() {
+        return mDropCount.get();
+    }
+
+    @Override
+    public String toString() {
+        final int depotSize;
+        synchronized (mDepot) {
+            depotSize = mDepot.size();
+        }
+        return String.format(Locale.US,
+                "ByteArrayPool[chunk=%d,depot=%d,allocations=%d,hits=%d,drops=%d]",
+                mChunkSize, depotSize, getAllocationCount(), getHitCount(), getDropCount());
+    }
 }
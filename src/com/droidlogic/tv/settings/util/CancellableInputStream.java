@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.util;
+
+import android.os.CancellationSignal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream that stops reading once the load it belongs to is cancelled.
+ * <p>
+ * The signal is checked for every chunk, a cancelled read throws
+ * {@link DecodeCancelledException} instead of consuming the rest of the image.  BitmapFactory
+ * swallows exceptions of the stream it decodes and returns what it has, so callers check
+ * the signal again after the decode.  Mark and reset are passed to the wrapped stream.
+ */
+public class CancellableInputStream extends FilterInputStream {
+
+    private final CancellationSignal mSignal;
+
+    public CancellableInputStream(InputStream in, CancellationSignal signal) {
+        super(in);
+        mSignal = signal;
+    }
+
+    private void throwIfCancelled() throws DecodeCancelledException {
+        if (mSignal.isCanceled()) {
+            throw new DecodeCancelledException();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        throwIfCancelled();
+        return super.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        throwIfCancelled();
+        return super.read(buffer, offset, count);
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        throwIfCancelled();
+        return super.skip(byteCount);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.util;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * Decodes images straight from seekable file descriptors.
+ * <p>
+ * Uncompressed resources in an apk and content provided by files can be opened as an
+ * {@link AssetFileDescriptor}.  BitmapFactory then reads the file itself, both for the bounds
+ * and for the pixels, nothing is copied into java buffers.  Pipes and sockets are not seekable,
+ * those are read as streams.
+ */
+public final class FileDescriptorDecoder {
+
+    private static final String TAG = "FileDescriptorDecoder";
+
+    /**
+     * Non instantiable.
+     */
+    private FileDescriptorDecoder() {}
+
+    /**
+     * @return descriptor of an uncompressed resource, null if the resource can only be read
+     * as a stream
+     */
+    public static AssetFileDescriptor openResource(Resources resources, int id) {
+        final AssetFileDescriptor afd;
+        try {
+            afd = resources.openRawResourceFd(id);
+        } catch (Resources.NotFoundException e) {
+            // compressed in the apk
+            return null;
+        }
+        if (afd != null && !isSeekable(afd)) {
+            close(afd);
+            return null;
+        }
+        return afd;
+    }
+
+    /**
+     * @return false for pipes and sockets, read those with
+     * {@link AssetFileDescriptor#createInputStream()}
+     */
+    public static boolean isSeekable(AssetFileDescriptor afd) {
+        return seek(afd);
+    }
+
+    /**
+     * Moves the descriptor to the first byte of the image.
+     */
+    private static boolean seek(AssetFileDescriptor afd) {
+        try {
+            Os.lseek(afd.getFileDescriptor(), afd.getStartOffset(), OsConstants.SEEK_SET);
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Decodes the image, or only its bounds if {@link BitmapFactory.Options#inJustDecodeBounds}
+     * is set.  Can be called again with the same descriptor.
+     */
+    public static Bitmap decode(AssetFileDescriptor afd, BitmapFactory.Options options)
+            throws IOException {
+        if (!seek(afd)) {
+            throw new IOException("descriptor not seekable");
+        }
+        final FileDescriptor fd = afd.getFileDescriptor();
+        return BitmapFactory.decodeFileDescriptor(fd, null, options);
+    }
+
+    /**
+     * Decodes the bounds of the image into outWidth and outHeight, when autoConfig is true
+     * also sets {@link BitmapFactory.Options#inPreferredConfig} to RGB_565 for images without
+     * alpha.
+     */
+    public static void decodeBounds(AssetFileDescriptor afd, BitmapFactory.Options options,
+            boolean autoConfig) throws IOException {
+        final boolean justDecodeBounds = options.inJustDecodeBounds;
+        options.inJustDecodeBounds = true;
+        try {
+            decode(afd, options);
+        } finally {
+            options.inJustDecodeBounds = justDecodeBounds;
+        }
+        if (!autoConfig || options.outMimeType == null) {
+            return;
+        }
+        if ("image/jpeg".equals(options.outMimeType)) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            return;
+        }
+        // alpha of other formats is in the header
+        final ByteArrayPool pool = ByteArrayPool.get4KBPool();
+        final byte[] header = pool.allocateChunk();
+        try {
+            if (!seek(afd)) {
+                return;
+            }
+            int length = 0;
+            int count;
+            while (length < header.length
+                    && (count = Os.read(afd.getFileDescriptor(), header, length,
+                            header.length - length)) > 0) {
+                length += count;
+            }
+            ImageHeaderParser parser =
+                    ImageHeaderParser.parse(new ByteArrayInputStream(header, 0, length));
+            if (parser != null && !parser.hasAlpha()) {
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+            }
+        } catch (ErrnoException e) {
+            Log.w(TAG, "failed to read header " + e);
+        } finally {
+            pool.releaseChunk(header);
+        }
+    }
+
+    public static void close(AssetFileDescriptor afd) {
+        try {
+            afd.close();
+        } catch (IOException e) {
+            Log.w(TAG, "failed to close descriptor " + e);
+        }
+    }
+}
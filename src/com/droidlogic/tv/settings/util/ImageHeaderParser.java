@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the dimensions of PNG, JPEG, WebP and GIF images from their headers, and whether the
+ * image may have alpha.
+ * <p>
+ * Only the first {@link #PROBE_LIMIT} bytes of the stream are read and buffered, instead of
+ * letting BitmapFactory decode bounds on a stream that can be reset to any position, which
+ * buffers up to the whole encoded image.
+ */
+public final class ImageHeaderParser {
+
+    /** maximum number of bytes read for finding the dimensions */
+    public static final int PROBE_LIMIT = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    public static final int TYPE_UNKNOWN = 0;
+    public static final int TYPE_PNG = 1;
+    public static final int TYPE_JPEG = 2;
+    public static final int TYPE_WEBP = 3;
+    public static final int TYPE_GIF = 4;
+
+    private final InputStream mIn;
+    private int mRead;
+
+    private int mType = TYPE_UNKNOWN;
+    private int mWidth;
+    private int mHeight;
+    private boolean mHasAlpha = true;
+
+    private ImageHeaderParser(InputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Parses the header of the image at current position of the stream, reads at most
+     * {@link #PROBE_LIMIT} bytes.
+     * @return the parser holding type and dimensions, null if the format is not recognized
+     */
+    public static ImageHeaderParser parse(InputStream in) throws IOException {
+        ImageHeaderParser parser = new ImageHeaderParser(in);
+        try {
+            if (parser.parseHeader() && parser.mWidth > 0 && parser.mHeight > 0) {
+                return parser;
+            }
+        } catch (EOFException e) {
+            // truncated header or over the probe limit
+        }
+        return null;
+    }
+
+    /**
+     * Finds the dimensions of the image for {@link BitmapFactory.Options#outWidth} and
+     * {@link BitmapFactory.Options#outHeight}.  Known formats only keep the probed prefix in
+     * memory, other formats are measured by BitmapFactory with the whole stream buffered.
+     * @return stream to decode the image from, it starts at the beginning of the image.
+     * Closing it closes the stream passed in.
+     */
+    public static InputStream decodeBounds(InputStream in, BitmapFactory.Options options)
+            throws IOException {
+        return decodeBounds(in, options, false);
+    }
+
+    /**
+     * Same as {@link #decodeBounds(InputStream, BitmapFactory.Options)}, when autoConfig is
+     * true also sets {@link BitmapFactory.Options#inPreferredConfig} to RGB_565 for images
+     * without alpha.
+     */
+    public static InputStream decodeBounds(InputStream in, BitmapFactory.Options options,
+            boolean autoConfig) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in, BUFFER_SIZE);
+        }
+        in.mark(PROBE_LIMIT);
+        ImageHeaderParser parser = parse(in);
+        in.reset();
+        if (parser != null) {
+            options.outWidth = parser.mWidth;
+            options.outHeight = parser.mHeight;
+            if (autoConfig && !parser.mHasAlpha) {
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+            }
+            return in;
+        }
+
+        // unknown format
+        final boolean justDecodeBounds = options.inJustDecodeBounds;
+        options.inJustDecodeBounds = true;
+        try {
+            if (in instanceof ByteArrayInputStream) {
+                // resettable to any position without copying
+                in.mark(Integer.MAX_VALUE);
+                BitmapFactory.decodeStream(in, null, options);
+                in.reset();
+                chooseConfig(options, autoConfig);
+                return in;
+            }
+            CachedInputStream cachedStream = new CachedInputStream(in);
+            // Let the cachedStream be able to mark unlimited bytes up to full stream length.
+            // The value that BitmapFactory uses (1024) is too small for detecting bounds
+            cachedStream.setOverrideMarkLimit(Integer.MAX_VALUE);
+            cachedStream.mark(Integer.MAX_VALUE);
+            BitmapFactory.decodeStream(cachedStream, null, options);
+            // Reset buffer to original position and disable the overrideMarkLimit
+            cachedStream.reset();
+            cachedStream.setOverrideMarkLimit(0);
+            chooseConfig(options, autoConfig);
+            return cachedStream;
+        } finally {
+            options.inJustDecodeBounds = justDecodeBounds;
+        }
+    }
+
+    /**
+     * Picks the config from {@link BitmapFactory.Options#outMimeType} of a bounds decode, only
+     * JPEG is known to have no alpha without reading the header.
+     */
+    static void chooseConfig(BitmapFactory.Options options, boolean autoConfig) {
+        if (autoConfig && "image/jpeg".equals(options.outMimeType)) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return false if the image is known to be opaque
+     */
+    public boolean hasAlpha() {
+        return mHasAlpha;
+    }
+
+    private int read() throws IOException {
+        if (mRead >= PROBE_LIMIT) {
+            throw new EOFException();
+        }
+        int b = mIn.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        mRead++;
+        return b;
+    }
+
+    private void skip(int count) throws IOException {
+        if (mRead + count > PROBE_LIMIT) {
+            throw new EOFException();
+        }
+        while (count > 0) {
+            final long skipped = mIn.skip(count);
+            if (skipped > 0) {
+                mRead += skipped;
+                count -= skipped;
+            } else {
+                // skip() may return 0 before the end of stream, read() tells
+                read();
+                count--;
+            }
+        }
+    }
+
+    private int readUInt16BE() throws IOException {
+        return (read() << 8) | read();
+    }
+
+    private int readUInt16LE() throws IOException {
+        return read() | (read() << 8);
+    }
+
+    private int readUInt24LE() throws IOException {
+        return read() | (read() << 8) | (read() << 16);
+    }
+
+    private int readInt32BE() throws IOException {
+        return (read() << 24) | (read() << 16) | (read() << 8) | read();
+    }
+
+    private int readInt32LE() throws IOException {
+        return read() | (read() << 8) | (read() << 16) | (read() << 24);
+    }
+
+    private boolean parseHeader() throws IOException {
+        final int b0 = read();
+        final int b1 = read();
+        if (b0 == 0xFF && b1 == 0xD8) {
+            mType = TYPE_JPEG;
+            mHasAlpha = false;
+            return parseJpeg();
+        } else if (b0 == 0x89 && b1 == 'P') {
+            mType = TYPE_PNG;
+            return parsePng();
+        } else if (b0 == 'G' && b1 == 'I') {
+            mType = TYPE_GIF;
+            return parseGif();
+        } else if (b0 == 'R' && b1 == 'I') {
+            mType = TYPE_WEBP;
+            return parseWebp();
+        }
+        return false;
+    }
+
+    private boolean parsePng() throws IOException {
+        // rest of signature "NG\r\n\032\n"
+        if (read() != 'N' || read() != 'G' || read() != 0x0D || read() != 0x0A
+                || read() != 0x1A || read() != 0x0A) {
+            return false;
+        }
+        // IHDR is always the first chunk
+        skip(4);
+        if (read() != 'I' || read() != 'H' || read() != 'D' || read() != 'R') {
+            return false;
+        }
+        mWidth = readInt32BE();
+        mHeight = readInt32BE();
+        // bit depth, color type
+        skip(1);
+        final int colorType = read();
+        if (colorType == 4 || colorType == 6) {
+            // gray or true color with alpha
+            return true;
+        }
+        try {
+            // compression, filter, interlace and crc of IHDR
+            skip(7);
+            // transparency of gray, true color or palette images is in a tRNS chunk before
+            // the first IDAT
+            while (true) {
+                final int length = readInt32BE();
+                final int type = readInt32BE();
+                if (type == 0x74524E53) {
+                    // tRNS
+                    return true;
+                } else if (type == 0x49444154 || type == 0x49454E44) {
+                    // IDAT, IEND
+                    break;
+                } else if (length < 0 || length > PROBE_LIMIT) {
+                    // corrupted, assume alpha
+                    return true;
+                }
+                skip(length + 4);
+            }
+            mHasAlpha = false;
+        } catch (EOFException e) {
+            // over the probe limit, assume alpha
+        }
+        return true;
+    }
+
+    private boolean parseGif() throws IOException {
+        // "F87a" or "F89a"
+        if (read() != 'F' || read() != '8') {
+            return false;
+        }
+        final int version = read();
+        if ((version != '7' && version != '9') || read() != 'a') {
+            return false;
+        }
+        mWidth = readUInt16LE();
+        mHeight = readUInt16LE();
+        return true;
+    }
+
+    private boolean parseWebp() throws IOException {
+        // "FF" <file size> "WEBP"
+        if (read() != 'F' || read() != 'F') {
+            return false;
+        }
+        skip(4);
+        if (read() != 'W' || read() != 'E' || read() != 'B' || read() != 'P') {
+            return false;
+        }
+        if (read() != 'V' || read() != 'P' || read() != '8') {
+            return false;
+        }
+        final int format = read();
+        // chunk size
+        skip(4);
+        if (format == ' ') {
+            // lossy: frame tag, start code 9d 01 2a, 14 bits of width and height
+            skip(3);
+            if (read() != 0x9D || read() != 0x01 || read() != 0x2A) {
+                return false;
+            }
+            mWidth = readUInt16LE() & 0x3FFF;
+            mHeight = readUInt16LE() & 0x3FFF;
+            mHasAlpha = false;
+            return true;
+        } else if (format == 'L') {
+            // lossless: signature 0x2f, 14 bits of width - 1 and height - 1
+            if (read() != 0x2F) {
+                return false;
+            }
+            final int bits = readInt32LE();
+            mWidth = (bits & 0x3FFF) + 1;
+            mHeight = ((bits >> 14) & 0x3FFF) + 1;
+            // alpha_is_used hint
+            mHasAlpha = (bits & (1 << 28)) != 0;
+            return true;
+        } else if (format == 'X') {
+            // extended: flags and reserved bytes, 24 bits of canvas width - 1 and height - 1
+            mHasAlpha = (read() & 0x10) != 0;
+            skip(3);
+            mWidth = readUInt24LE() + 1;
+            mHeight = readUInt24LE() + 1;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean parseJpeg() throws IOException {
+        while (true) {
+            if (read() != 0xFF) {
+                return false;
+            }
+            int marker = read();
+            // fill bytes
+            while (marker == 0xFF) {
+                marker = read();
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                // end of image or start of scan before any frame header
+                return false;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // standalone markers
+                continue;
+            }
+            final int length = readUInt16BE();
+            if (length < 2) {
+                return false;
+            }
+            // SOF0 ~ SOF15, except DHT, JPG and DAC
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8
+                    && marker != 0xCC) {
+                // sample precision
+                skip(1);
+                mHeight = readUInt16BE();
+                mWidth = readUInt16BE();
+                return true;
+            }
+            skip(length - 2);
+        }
+    }
+}
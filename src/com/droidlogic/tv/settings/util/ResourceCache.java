@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Resources;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Cache of the {@link Resources} of other packages and of resource ids resolved by name.
+ * <p>
+ * Loading a {@link android.content.Intent.ShortcutIconResource} needs the Resources of its
+ * package from PackageManager and a {@link Resources#getIdentifier} lookup, a slow search by
+ * string.  Both are cached, so binding the same icon again skips them.  Entries of a package
+ * are dropped when it is replaced, changed or removed.
+ */
+public final class ResourceCache {
+
+    private static final String TAG = "ResourceCache";
+    private static final boolean DEBUG = false;
+
+    private static final Object sInstanceLock = new Object();
+    private static ResourceCache sInstance;
+
+    private final Context mContext;
+
+    // package name -> Resources of the package
+    private final HashMap<String, Resources> mResources = new HashMap<>();
+    // package name -> resource name -> id, 0 for names that don't exist
+    private final HashMap<String, HashMap<String, Integer>> mIdentifiers = new HashMap<>();
+
+    private int mHitCount;
+    private int mMissCount;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Uri data = intent.getData();
+            if (data == null) {
+                return;
+            }
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+                    && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                // followed by ACTION_PACKAGE_REPLACED
+                return;
+            }
+            invalidate(data.getSchemeSpecificPart());
+        }
+    };
+
+    /**
+     * get the singleton ResourceCache for the application
+     */
+    public static ResourceCache getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (sInstanceLock) {
+                if (sInstance == null) {
+                    sInstance = new ResourceCache(context.getApplicationContext());
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private ResourceCache(Context context) {
+        mContext = context;
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+    }
+
+    /**
+     * @return Resources of the package, see
+     * {@link android.content.pm.PackageManager#getResourcesForApplication(String)}
+     */
+    public Resources getResources(String packageName) throws NameNotFoundException {
+        synchronized (this) {
+            Resources resources = mResources.get(packageName);
+            if (resources != null) {
+                return resources;
+            }
+        }
+        // outside the lock, PackageManager may take a while
+        final Resources resources =
+                mContext.getPackageManager().getResourcesForApplication(packageName);
+        if (resources != null) {
+            synchronized (this) {
+                mResources.put(packageName, resources);
+            }
+        }
+        return resources;
+    }
+
+    /**
+     * @param resources Resources of the package, from {@link #getResources(String)}
+     * @param resourceName fully qualified name, "package:type/entry"
+     * @return id of the resource, 0 if there is none
+     */
+    public int getIdentifier(String packageName, Resources resources, String resourceName) {
+        synchronized (this) {
+            HashMap<String, Integer> identifiers = mIdentifiers.get(packageName);
+            if (identifiers != null) {
+                final Integer id = identifiers.get(resourceName);
+                if (id != null) {
+                    mHitCount++;
+                    return id;
+                }
+            }
+            mMissCount++;
+        }
+        final int id = resources.getIdentifier(resourceName, null, null);
+        synchronized (this) {
+            // the package may have been invalidated meanwhile, then the lookup is not cached
+            if (mResources.get(packageName) == resources) {
+                HashMap<String, Integer> identifiers = mIdentifiers.get(packageName);
+                if (identifiers == null) {
+                    identifiers = new HashMap<>();
+                    mIdentifiers.put(packageName, identifiers);
+                }
+                identifiers.put(resourceName, id);
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "resolved " + resourceName + " to " + id);
+        }
+        return id;
+    }
+
+    /**
+     * drop the Resources and ids of the package
+     */
+    public synchronized void invalidate(String packageName) {
+        if (DEBUG) {
+            Log.d(TAG, "invalidate " + packageName);
+        }
+        mResources.remove(packageName);
+        mIdentifiers.remove(packageName);
+    }
+
+    public synchronized void clear() {
+        mResources.clear();
+        mIdentifiers.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "ResourceCache[packages=%d,hits=%d,misses=%d]",
+                mResources.size(), mHitCount, mMissCount);
+    }
+}
@@ -16,30 +16,27 @@
 
 package com.droidlogic.tv.settings.widget;
 
-import android.app.ActivityManager;
-import android.content.ComponentCallbacks2;
-import android.content.ContentResolver;
 import android.content.Context;
-import android.content.pm.ActivityInfo;
-import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.util.Log;
-import android.util.LruCache;
 import android.widget.ImageView;
 
 import com.droidlogic.tv.settings.R;
 import com.droidlogic.tv.settings.util.AccountImageChangeObserver;
+import com.droidlogic.tv.settings.util.AccountImageUriCache;
 import com.droidlogic.tv.settings.util.UriUtils;
 
+import java.io.PrintWriter;
 import java.lang.ref.SoftReference;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.Map;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Downloader class which loads a resource URI into an image view.
  * <p>
- * This class adds a cache over BitmapWorkerTask.
+ * This class adds a cache over BitmapWorkerTask.  The memory cache and worker threads are
+ * shared with {@link DrawableDownloader}, see {@link ImageEngine}.
  */
 public class BitmapDownloader {
 
@@ -47,21 +44,10 @@ public class BitmapDownloader {
 
     private static final boolean DEBUG = false;
 
-    private static final int CORE_POOL_SIZE = 5;
-
-    private static final Executor BITMAP_DOWNLOADER_THREAD_POOL_EXECUTOR =
-            Executors.newFixedThreadPool(CORE_POOL_SIZE);
-
-    // 1/4 of max memory is used for bitmap mem cache
-    private static final int MEM_TO_CACHE = 4;
-
-    // hard limit for bitmap mem cache in MB
-    private static final int CACHE_HARD_LIMIT = 32;
-
     /**
-     * bitmap cache item structure saved in LruCache
+     * bitmap cache item structure saved in the memory cache of {@link ImageEngine}
      */
-    private static class BitmapItem {
+    private static class BitmapItem implements ImageEngine.CacheEntry {
         /**
          * cached bitmap
          */
@@ -75,26 +61,48 @@ public class BitmapDownloader {
             mBitmap = bitmap;
             mScaled = scaled;
         }
+
+        @Override
+        public int getByteCount() {
+            return mBitmap.getByteCount();
+        }
+
+        @Override
+        public int getSavedByteCount() {
+            return mBitmap.getConfig() == Bitmap.Config.RGB_565 ? mBitmap.getByteCount() : 0;
+        }
+
+        @Override
+        public void onEvicted() {
+            // bitmaps may still be shown by views, leave them to the GC
+        }
     }
 
-    private final LruCache<String, BitmapItem> mMemoryCache;
+    private final ImageEngine mEngine;
+    private final LongLruCache<ImageEngine.CacheEntry> mMemoryCache;
+
+    // loads currently running, shared by requests for the same image
+    private final InFlightRequests<Bitmap> mInFlightRequests = new InFlightRequests<>();
+
+    private final AtomicInteger mDerivationCount = new AtomicInteger();
+    private final AtomicInteger mFullLoadCount = new AtomicInteger();
 
     private static BitmapDownloader sBitmapDownloader;
 
     private static final Object sBitmapDownloaderLock = new Object();
 
     // Bitmap cache also uses size of Bitmap as part of key.
-    // Bitmap cache is divided into following buckets by height:
-    // TODO: we currently care more about height, what about width in key?
-    // height <= 128, 128 < height <= 512, height > 512
+    // Bitmap cache is divided into following buckets by both width and height:
+    // size <= 128, 128 < size <= 512, size > 512
     // Different bitmap cache buckets save different bitmap cache items.
     // Bitmaps within same bucket share the largest cache item.
-    private static final int[] SIZE_BUCKET = new int[]{128, 512, Integer.MAX_VALUE};
-
-    private Configuration mConfiguration;
+    // Keys are packed into a long by ImageKeys so cache probes don't allocate.
+    static final int[] SIZE_BUCKET = new int[]{128, 512, Integer.MAX_VALUE};
 
     public static abstract class BitmapCallback {
-        SoftReference<BitmapWorkerTask> mTask;
+        // delivery of a memory cache hit posted to UI thread
+        Runnable mDelivery;
+        SoftReference<InFlightRequests.Subscription<Bitmap>> mSubscription;
 
         public abstract void onBitmapRetrieved(Bitmap bitmap);
     }
@@ -114,40 +122,20 @@ public class BitmapDownloader {
     }
 
     public BitmapDownloader(Context context) {
-        int memClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
-                .getMemoryClass();
-        memClass = memClass / MEM_TO_CACHE;
-        if (memClass > CACHE_HARD_LIMIT) {
-            memClass = CACHE_HARD_LIMIT;
-        }
-        int cacheSize = 1024 * 1024 * memClass;
-        mMemoryCache = new LruCache<String, BitmapItem>(cacheSize) {
-            @Override
-            protected int sizeOf(String key, BitmapItem bitmap) {
-                return bitmap.mBitmap.getByteCount();
-            }
-        };
-
-        final Context applicationContext = context.getApplicationContext();
-        mConfiguration = new Configuration(applicationContext.getResources().getConfiguration());
-
-        applicationContext.registerComponentCallbacks(new ComponentCallbacks2() {
-            @Override
-            public void onTrimMemory(int level) {
-                mMemoryCache.evictAll();
-            }
-
-            @Override
-            public void onConfigurationChanged(Configuration newConfig) {
-                int changes = mConfiguration.updateFrom(newConfig);
-                if (Configuration.needNewResources(changes, ActivityInfo.CONFIG_LAYOUT_DIRECTION)) {
-                    invalidateCachedResources();
-                }
-            }
+        mEngine = ImageEngine.getInstance(context);
+        mMemoryCache = mEngine.getMemoryCache();
+        mEngine.getWarmStartSnapshot().replay(ImageEngine.NAMESPACE_BITMAP,
+                new WarmStartSnapshot.Replayer() {
+                    @Override
+                    public Object replay(BitmapWorkerOptions options) {
+                        return prefetch(options);
+                    }
 
-            @Override
-            public void onLowMemory() {}
-        });
+                    @Override
+                    public void cancel(Object handle) {
+                        cancelDownload(handle);
+                    }
+                });
     }
 
     /**
@@ -161,6 +149,7 @@ public class BitmapDownloader {
         Bitmap bitmap = null;
         if (hasAccountImageUri) {
             AccountImageChangeObserver.getInstance().registerChangeUriIfPresent(options);
+            options = getPictureOptions(options);
         } else {
             bitmap = getBitmapFromMemCache(options);
         }
@@ -170,7 +159,7 @@ public class BitmapDownloader {
                 @Override
                 protected Bitmap doInBackground(BitmapWorkerOptions... params) {
                     final Bitmap bitmap = super.doInBackground(params);
-                    if (bitmap != null && !hasAccountImageUri) {
+                    if (bitmap != null && !hasAccountImageUri && !isIconCached()) {
                         addBitmapToMemoryCache(params[0], bitmap, isScaled());
                     }
                     return bitmap;
@@ -191,25 +180,32 @@ public class BitmapDownloader {
         Bitmap bitmap = null;
         if (hasAccountImageUri) {
             AccountImageChangeObserver.getInstance().registerChangeUriIfPresent(options);
+            options = getPictureOptions(options);
         } else {
             bitmap = getBitmapFromMemCache(options);
         }
 
+        mEngine.getWarmStartSnapshot().recordRequest(ImageEngine.NAMESPACE_BITMAP, options,
+                bitmap != null);
         if (bitmap != null) {
             imageView.setImageBitmap(bitmap);
         } else {
-            BitmapWorkerTask task = new BitmapWorkerTask(imageView) {
-                @Override
-                protected Bitmap doInBackground(BitmapWorkerOptions... params) {
-                    Bitmap bitmap = super.doInBackground(params);
-                    if (bitmap != null && !hasAccountImageUri) {
-                        addBitmapToMemoryCache(params[0], bitmap, isScaled());
-                    }
-                    return bitmap;
-                }
-            };
-            imageView.setTag(R.id.imageDownloadTask, new SoftReference<>(task));
-            task.execute(options);
+            final WeakReference<ImageView> imageViewRef = new WeakReference<>(imageView);
+            InFlightRequests.Subscription<Bitmap> subscription = mInFlightRequests.subscribe(
+                    InFlightRequests.getKey(options), options.getPriority(),
+                    new InFlightRequests.Subscriber<Bitmap>() {
+                        @Override
+                        public void onResult(Bitmap result) {
+                            final ImageView imageView = imageViewRef.get();
+                            if (imageView != null) {
+                                imageView.setImageBitmap(result);
+                            }
+                        }
+                    });
+            imageView.setTag(R.id.imageDownloadTask, new SoftReference<>(subscription));
+            if (subscription.startsLoad()) {
+                startLoad(subscription.getPending(), options, hasAccountImageUri);
+            }
         }
     }
 
@@ -224,16 +220,81 @@ public class BitmapDownloader {
         final Bitmap bitmap = hasAccountImageUri ? null : getBitmapFromMemCache(options);
         if (hasAccountImageUri) {
             AccountImageChangeObserver.getInstance().registerChangeUriIfPresent(options);
+            options = getPictureOptions(options);
         }
 
+        mEngine.getWarmStartSnapshot().recordRequest(ImageEngine.NAMESPACE_BITMAP, options,
+                bitmap != null);
+        if (bitmap != null) {
+            // still deliver asynchronously, callers expect the callback after getBitmap()
+            Runnable delivery = new Runnable() {
+                @Override
+                public void run() {
+                    callback.mDelivery = null;
+                    callback.onBitmapRetrieved(bitmap);
+                }
+            };
+            callback.mDelivery = delivery;
+            mEngine.getMainHandler().post(delivery);
+            return;
+        }
+
+        InFlightRequests.Subscription<Bitmap> subscription = mInFlightRequests.subscribe(
+                InFlightRequests.getKey(options), options.getPriority(),
+                new InFlightRequests.Subscriber<Bitmap>() {
+                    @Override
+                    public void onResult(Bitmap result) {
+                        callback.onBitmapRetrieved(result);
+                    }
+                });
+        callback.mSubscription = new SoftReference<>(subscription);
+        if (subscription.startsLoad()) {
+            startLoad(subscription.getPending(), options, hasAccountImageUri);
+        }
+    }
+
+    /**
+     * Loads the bitmap into memory cache at {@link BitmapWorkerOptions#PRIORITY_PREFETCH}, ahead
+     * of a view asking for it.  A view requesting the same image joins the load and raises it
+     * to its own priority.
+     * @return handle to pass to {@link #cancelDownload(Object)}, null if there is nothing to
+     * load
+     */
+    public BitmapCallback prefetch(BitmapWorkerOptions options) {
+        if (!options.isMemCacheEnabled() || UriUtils.isAccountImageUri(options.getResourceUri())
+                || getBitmapFromMemCache(options) != null) {
+            return null;
+        }
+        BitmapCallback callback = new BitmapCallback() {
+            @Override
+            public void onBitmapRetrieved(Bitmap bitmap) {
+                // kept in memory cache by the load
+            }
+        };
+        getBitmap(options.withPriority(BitmapWorkerOptions.PRIORITY_PREFETCH), callback);
+        return callback;
+    }
+
+    /**
+     * Starts the task shared by all subscribers of the pending load.
+     */
+    private void startLoad(final InFlightRequests.Pending<Bitmap> pending,
+            BitmapWorkerOptions options, final boolean hasAccountImageUri) {
+        // a larger copy already in memory is scaled down instead of loading the source again
+        final Bitmap derivationSource =
+                hasAccountImageUri ? null : getDerivationSourceFromMemCache(options);
         BitmapWorkerTask task = new BitmapWorkerTask(null) {
             @Override
             protected Bitmap doInBackground(BitmapWorkerOptions... params) {
-                if (bitmap != null) {
-                    return bitmap;
+                final Bitmap bitmap;
+                if (derivationSource != null) {
+                    bitmap = deriveBitmap(params[0], derivationSource);
+                    mDerivationCount.incrementAndGet();
+                } else {
+                    bitmap = super.doInBackground(params);
+                    mFullLoadCount.incrementAndGet();
                 }
-                final Bitmap bitmap = super.doInBackground(params);
-                if (bitmap != null && !hasAccountImageUri) {
+                if (bitmap != null && !hasAccountImageUri && !isIconCached()) {
                     addBitmapToMemoryCache(params[0], bitmap, isScaled());
                 }
                 return bitmap;
@@ -241,141 +302,251 @@ public class BitmapDownloader {
 
             @Override
             protected void onPostExecute(Bitmap bitmap) {
-                callback.onBitmapRetrieved(bitmap);
+                List<InFlightRequests.Subscriber<Bitmap>> subscribers =
+                        mInFlightRequests.complete(pending);
+                for (int i = 0, c = subscribers.size(); i < c; i++) {
+                    subscribers.get(i).onResult(bitmap);
+                }
             }
         };
-        callback.mTask = new SoftReference<>(task);
-        task.executeOnExecutor(BITMAP_DOWNLOADER_THREAD_POOL_EXECUTOR, options);
+        PriorityScheduler.Ticket ticket = mEngine.newTicket(options);
+        if (derivationSource == null) {
+            task.fetchOn(ticket, options);
+        }
+        mInFlightRequests.setTask(pending, task, ticket, task.getCancellationSignal());
+        task.executeOnExecutor(ticket, options);
     }
 
     /**
      * Cancel download<p>
+     * The shared load is only cancelled when no other view or callback waits for it.
      * @param key {@link BitmapCallback} or {@link ImageView}
      */
     public boolean cancelDownload(Object key) {
-        BitmapWorkerTask task = null;
+        Runnable delivery = null;
+        InFlightRequests.Subscription<Bitmap> subscription = null;
         if (key instanceof ImageView) {
             ImageView imageView = (ImageView)key;
-            SoftReference<BitmapWorkerTask> softReference =
-                    (SoftReference<BitmapWorkerTask>) imageView.getTag(R.id.imageDownloadTask);
+            SoftReference<InFlightRequests.Subscription<Bitmap>> softReference =
+                    (SoftReference<InFlightRequests.Subscription<Bitmap>>)
+                    imageView.getTag(R.id.imageDownloadTask);
             if (softReference != null) {
-                task = softReference.get();
+                subscription = softReference.get();
                 softReference.clear();
             }
         } else if (key instanceof BitmapCallback) {
             BitmapCallback callback = (BitmapCallback)key;
-            if (callback.mTask != null) {
-                task = callback.mTask.get();
-                callback.mTask = null;
+            delivery = callback.mDelivery;
+            callback.mDelivery = null;
+            if (callback.mSubscription != null) {
+                subscription = callback.mSubscription.get();
+                callback.mSubscription = null;
             }
         }
-        if (task != null) {
-            return task.cancel(true);
+        boolean cancelled = false;
+        if (delivery != null) {
+            mEngine.getMainHandler().removeCallbacks(delivery);
+            cancelled = true;
+        }
+        if (subscription != null) {
+            cancelled |= mInFlightRequests.cancel(subscription);
         }
-        return false;
+        return cancelled;
     }
 
-    private static String getBucketKey(String baseKey, Bitmap.Config bitmapConfig, int width) {
+    /**
+     * @return index of the size bucket the dimension falls in
+     */
+    static int getSizeClass(int size) {
         for (int i = 0; i < SIZE_BUCKET.length; i++) {
-            if (width <= SIZE_BUCKET[i]) {
-                return new StringBuilder(baseKey.length() + 16).append(baseKey)
-                        .append(":").append(bitmapConfig == null ? "" : bitmapConfig.ordinal())
-                        .append(":").append(SIZE_BUCKET[i]).toString();
+            if (size <= SIZE_BUCKET[i]) {
+                return i;
             }
         }
         // should never happen because last bucket is Integer.MAX_VALUE
         throw new RuntimeException();
     }
 
+    private static long getBucketKey(int baseId, int configCode, int widthClass,
+            int heightClass) {
+        return ImageKeys.pack(ImageEngine.NAMESPACE_BITMAP, baseId, configCode, widthClass,
+                heightClass);
+    }
+
     private void addBitmapToMemoryCache(BitmapWorkerOptions key, Bitmap bitmap, boolean isScaled) {
         if (!key.isMemCacheEnabled()) {
             return;
         }
-        String bucketKey = getBucketKey(
-                key.getCacheKey(), key.getBitmapConfig(), bitmap.getHeight());
-        BitmapItem bitmapItem = mMemoryCache.get(bucketKey);
+        mEngine.getWarmStartSnapshot().recordLoaded(ImageEngine.NAMESPACE_BITMAP, key,
+                RecycleBitmapPool.getSize(bitmap));
+        long bucketKey = getBucketKey(key.getCacheKeyId(), ImageKeys.getConfigCode(key),
+                getSizeClass(bitmap.getWidth()), getSizeClass(bitmap.getHeight()));
+        BitmapItem bitmapItem = getItem(bucketKey);
         if (bitmapItem != null) {
             Bitmap currentBitmap = bitmapItem.mBitmap;
             // If somebody else happened to get a larger one in the bucket, discard our bitmap.
-            // TODO: need a better way to prevent current downloading for the same Bitmap
+            // Identical requests share one load (see InFlightRequests), this only happens for
+            // different sizes falling in the same bucket.
             if (currentBitmap.getWidth() >= bitmap.getWidth() && currentBitmap.getHeight()
                     >= bitmap.getHeight()) {
                 return;
             }
         }
         if (DEBUG) {
-            Log.d(TAG, "add cache "+bucketKey+" isScaled = "+isScaled);
+            Log.d(TAG, "add cache " + key.getCacheKey() + " " + bitmap.getWidth() + "x"
+                    + bitmap.getHeight() + " isScaled = " + isScaled);
         }
         bitmapItem = new BitmapItem(bitmap, isScaled);
         mMemoryCache.put(bucketKey, bitmapItem);
     }
 
+    private BitmapItem getItem(long bucketKey) {
+        return (BitmapItem) mMemoryCache.get(bucketKey);
+    }
+
+    /**
+     * @return options loading the picture of an account image uri when the picture uri is in
+     * {@link AccountImageUriCache}, the load then skips looking up the account.  Otherwise
+     * the options passed in.
+     */
+    private static BitmapWorkerOptions getPictureOptions(BitmapWorkerOptions options) {
+        BitmapWorkerOptions pictureOptions =
+                AccountImageUriCache.getInstance().getPictureOptions(options);
+        return pictureOptions != null ? pictureOptions : options;
+    }
+
     private Bitmap getBitmapFromMemCache(BitmapWorkerOptions key) {
-        if (key.getHeight() != BitmapWorkerOptions.MAX_IMAGE_DIMENSION_PX) {
-            // 1. find the bitmap in the size bucket
-            String bucketKey =
-                    getBucketKey(key.getCacheKey(), key.getBitmapConfig(), key.getHeight());
-            BitmapItem bitmapItem = mMemoryCache.get(bucketKey);
-            if (bitmapItem != null) {
-                Bitmap bitmap = bitmapItem.mBitmap;
-                // now we have the bitmap in the bucket, use it when the bitmap is not scaled or
-                // if the size is larger than or equals to the output size
-                if (!bitmapItem.mScaled) {
-                    return bitmap;
-                }
-                if (bitmap.getHeight() >= key.getHeight()) {
-                    return bitmap;
+        final Bitmap bitmap = findBitmapInMemCache(key);
+        ImageMetrics.getInstance().recordMemoryLookup(ImageEngine.NAMESPACE_BITMAP, key,
+                bitmap != null);
+        return bitmap;
+    }
+
+    private Bitmap findBitmapInMemCache(BitmapWorkerOptions key) {
+        final int baseId = key.getCacheKeyId();
+        final int configCode = ImageKeys.getConfigCode(key);
+        if (key.getHeight() != BitmapWorkerOptions.MAX_IMAGE_DIMENSION_PX
+                || key.getWidth() != BitmapWorkerOptions.MAX_IMAGE_DIMENSION_PX) {
+            // 1. find the bitmap in the requested size bucket and smaller buckets, use it when
+            // the bitmap is not scaled or if the size is larger than or equals to the output
+            // size in one dimension (the bitmap was scaled to fit in same box).
+            // If the un-scaled bitmap exists in higher buckets,  we still need to scale it
+            // down,  that is done in background by deriving from
+            // getDerivationSourceFromMemCache() instead of loading it from resource or
+            // network again.
+            final int widthClass = getSizeClass(key.getWidth());
+            final int heightClass = getSizeClass(key.getHeight());
+            for (int h = heightClass; h >= 0; h--) {
+                for (int w = widthClass; w >= 0; w--) {
+                    BitmapItem bitmapItem = getItem(getBucketKey(baseId, configCode, w, h));
+                    if (bitmapItem != null) {
+                        Bitmap bitmap = bitmapItem.mBitmap;
+                        if (!bitmapItem.mScaled || bitmap.getHeight() >= key.getHeight()
+                                || bitmap.getWidth() >= key.getWidth()) {
+                            return bitmap;
+                        }
+                    }
                 }
             }
-            // 2. find un-scaled bitmap in smaller buckets.  If the un-scaled bitmap exists
-            // in higher buckets,  we still need to scale it down.  Right now we just
-            // return null and let the BitmapWorkerTask to do the same job again.
-            // TODO: use the existing unscaled bitmap and we don't need to load it from resource
-            // or network again.
-            for (int i = SIZE_BUCKET.length - 1; i >= 0; i--) {
-                if (SIZE_BUCKET[i] >= key.getHeight()) {
-                    continue;
-                }
-                bucketKey = getBucketKey(key.getCacheKey(), key.getBitmapConfig(), SIZE_BUCKET[i]);
-                bitmapItem = mMemoryCache.get(bucketKey);
+            return null;
+        }
+        // 2. find un-scaled bitmap if size is not specified
+        for (int h = SIZE_BUCKET.length - 1; h >= 0; h--) {
+            for (int w = SIZE_BUCKET.length - 1; w >= 0; w--) {
+                BitmapItem bitmapItem = getItem(getBucketKey(baseId, configCode, w, h));
                 if (bitmapItem != null && !bitmapItem.mScaled) {
                     return bitmapItem.mBitmap;
                 }
             }
+        }
+        return null;
+    }
+
+    /**
+     * find a cached bitmap in a larger bucket that is large enough to be scaled down to the
+     * requested size
+     */
+    private Bitmap getDerivationSourceFromMemCache(BitmapWorkerOptions key) {
+        if (!key.isMemCacheEnabled()
+                || (key.getHeight() == BitmapWorkerOptions.MAX_IMAGE_DIMENSION_PX
+                && key.getWidth() == BitmapWorkerOptions.MAX_IMAGE_DIMENSION_PX)) {
             return null;
         }
-        // 3. find un-scaled bitmap if size is not specified
-        for (int i = SIZE_BUCKET.length - 1; i >= 0; i--) {
-            String bucketKey =
-                    getBucketKey(key.getCacheKey(), key.getBitmapConfig(), SIZE_BUCKET[i]);
-            BitmapItem bitmapItem = mMemoryCache.get(bucketKey);
-            if (bitmapItem != null && !bitmapItem.mScaled) {
-                return bitmapItem.mBitmap;
+        final int baseId = key.getCacheKeyId();
+        final int configCode = ImageKeys.getConfigCode(key);
+        for (int h = SIZE_BUCKET.length - 1; h >= 0; h--) {
+            for (int w = SIZE_BUCKET.length - 1; w >= 0; w--) {
+                BitmapItem bitmapItem = getItem(getBucketKey(baseId, configCode, w, h));
+                if (bitmapItem != null) {
+                    Bitmap bitmap = bitmapItem.mBitmap;
+                    if (bitmap.getHeight() > key.getHeight()
+                            || bitmap.getWidth() > key.getWidth()) {
+                        return bitmap;
+                    }
+                }
             }
         }
         return null;
     }
 
+    /**
+     * @return number of bitmaps scaled down from a larger copy in memory cache
+     */
+    public int getDerivationCount() {
+        return mDerivationCount.get();
+    }
+
+    /**
+     * @return number of bitmaps loaded from their source (resource, network, content...)
+     */
+    public int getFullLoadCount() {
+        return mFullLoadCount.get();
+    }
+
+    /**
+     * @return bytes of cached bitmaps saved by decoding opaque images as RGB_565, see
+     * {@link BitmapWorkerOptions.Builder#autoBitmapConfig(boolean)}
+     */
+    public long getAutoConfigSavedBytes() {
+        return mEngine.getAutoConfigSavedBytes(ImageEngine.NAMESPACE_BITMAP);
+    }
+
     public Bitmap getLargestBitmapFromMemCache(BitmapWorkerOptions key) {
         // find largest bitmap matching the key
-        for (int i = SIZE_BUCKET.length - 1; i >= 0; i--) {
-            String bucketKey =
-                    getBucketKey(key.getCacheKey(), key.getBitmapConfig(), SIZE_BUCKET[i]);
-            BitmapItem bitmapItem = mMemoryCache.get(bucketKey);
-            if (bitmapItem != null) {
-                return bitmapItem.mBitmap;
+        final int baseId = key.getCacheKeyId();
+        final int configCode = ImageKeys.getConfigCode(key);
+        for (int h = SIZE_BUCKET.length - 1; h >= 0; h--) {
+            for (int w = SIZE_BUCKET.length - 1; w >= 0; w--) {
+                BitmapItem bitmapItem = getItem(getBucketKey(baseId, configCode, w, h));
+                if (bitmapItem != null) {
+                    return bitmapItem.mBitmap;
+                }
             }
         }
         return null;
     }
 
     public void invalidateCachedResources() {
-        Map<String, BitmapItem> snapshot = mMemoryCache.snapshot();
-        for (String uri: snapshot.keySet()) {
-            Log.d(TAG, "remove cached image: " + uri);
-            if (uri.startsWith(ContentResolver.SCHEME_ANDROID_RESOURCE)) {
-                mMemoryCache.remove(uri);
-            }
-        }
+        mEngine.invalidateCachedResources();
+    }
+
+    /**
+     * Prints the counters of this front-end and of the shared image engine, for
+     * {@link android.app.Activity#dump}.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println(TAG);
+        final String innerPrefix = prefix + "  ";
+        ImageMetrics.getInstance().dumpMemoryLookups(innerPrefix, writer,
+                ImageEngine.NAMESPACE_BITMAP);
+        writer.print(innerPrefix);
+        writer.print("derived: ");
+        writer.print(getDerivationCount());
+        writer.print(", full loads: ");
+        writer.print(getFullLoadCount());
+        writer.print(", auto config saved bytes: ");
+        writer.println(getAutoConfigSavedBytes());
+        mEngine.dump(prefix, writer);
     }
 }
@@ -37,9 +37,14 @@ public class BitmapWorkerOptions {
 
     /** flag to force disable memory cache */
     public static final int CACHE_FLAG_MEM_DISABLED = 1;
-    /** TODO support disk cache options */
+    /** flag to force disable disk cache, see {@link DiskBitmapCache} */
     public static final int CACHE_FLAG_DISK_DISABLED = 2;
 
+    /** priority of images shown on screen, the default */
+    public static final int PRIORITY_VISIBLE = 0;
+    /** priority of images loaded ahead of being shown, scheduled after all visible images */
+    public static final int PRIORITY_PREFETCH = 1;
+
     private ShortcutIconResource mIconResource;
     private Uri mResourceUri;
 
@@ -48,8 +53,11 @@ public class BitmapWorkerOptions {
     private Context mContext;
     private int mCacheFlag;
     private Bitmap.Config mBitmapConfig;
+    private boolean mAutoBitmapConfig;
+    private int mPriority;
 
     private String mKey;
+    private int mKeyId;
 
     /**
      * Builds options for a bitmap worker task.
@@ -65,6 +73,8 @@ public class BitmapWorkerOptions {
         private final Context mContext;
         private int mCacheFlag;
         private Bitmap.Config mBitmapConfig;
+        private boolean mAutoBitmapConfig;
+        private int mPriority;
 
         public Builder(Context context) {
             mWidth = MAX_IMAGE_DIMENSION_PX;
@@ -72,6 +82,7 @@ public class BitmapWorkerOptions {
             mContext = context.getApplicationContext();
             mCacheFlag = 0;
             mBitmapConfig = null;
+            mPriority = PRIORITY_VISIBLE;
         }
 
         public BitmapWorkerOptions build() {
@@ -96,6 +107,8 @@ public class BitmapWorkerOptions {
             options.mContext = mContext;
             options.mCacheFlag = mCacheFlag;
             options.mBitmapConfig = mBitmapConfig;
+            options.mAutoBitmapConfig = mAutoBitmapConfig;
+            options.mPriority = mPriority;
             if (options.mIconResource == null && options.mResourceUri == null) {
                 throw new RuntimeException("Both Icon and ResourceUri are null");
             }
@@ -147,6 +160,27 @@ public class BitmapWorkerOptions {
             return this;
         }
 
+        /**
+         * Decodes images without alpha as RGB_565, half the memory of ARGB_8888.  Ignored
+         * when {@link #bitmapConfig(android.graphics.Bitmap.Config)} is set.
+         */
+        public Builder autoBitmapConfig(boolean auto) {
+            mAutoBitmapConfig = auto;
+            return this;
+        }
+
+        /**
+         * @param priority {@link BitmapWorkerOptions#PRIORITY_VISIBLE} or
+         *     {@link BitmapWorkerOptions#PRIORITY_PREFETCH}
+         */
+        public Builder priority(int priority) {
+            if (priority != PRIORITY_VISIBLE && priority != PRIORITY_PREFETCH) {
+                throw new IllegalArgumentException("Invalid priority " + priority);
+            }
+            mPriority = priority;
+            return this;
+        }
+
     }
 
     /**
@@ -207,6 +241,45 @@ public class BitmapWorkerOptions {
         return mBitmapConfig;
     }
 
+    /**
+     * @return true if images without alpha are decoded as RGB_565, only when
+     * {@link #getBitmapConfig()} is null
+     */
+    public boolean isAutoBitmapConfig() {
+        return mAutoBitmapConfig && mBitmapConfig == null;
+    }
+
+    /**
+     * @return scheduling priority of the load, PRIORITY_VISIBLE or PRIORITY_PREFETCH.
+     * Does not take part in the cache key.
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @return options identical to this one except for the scheduling priority, which does not
+     * take part in the cache key
+     */
+    BitmapWorkerOptions withPriority(int priority) {
+        if (priority == mPriority) {
+            return this;
+        }
+        BitmapWorkerOptions options = new BitmapWorkerOptions();
+        options.mIconResource = mIconResource;
+        options.mResourceUri = mResourceUri;
+        options.mWidth = mWidth;
+        options.mHeight = mHeight;
+        options.mContext = mContext;
+        options.mCacheFlag = mCacheFlag;
+        options.mBitmapConfig = mBitmapConfig;
+        options.mAutoBitmapConfig = mAutoBitmapConfig;
+        options.mPriority = priority;
+        options.mKey = mKey;
+        options.mKeyId = mKeyId;
+        return options;
+    }
+
     public String getCacheKey() {
         if (mKey == null) {
             mKey = mIconResource != null ? mIconResource.packageName + "/"
@@ -215,6 +288,17 @@ public class BitmapWorkerOptions {
         return mKey;
     }
 
+    /**
+     * @return {@link #getCacheKey()} interned to an int, used for allocation free cache keys
+     * @see ImageKeys
+     */
+    int getCacheKeyId() {
+        if (mKeyId == 0) {
+            mKeyId = ImageKeys.intern(getCacheKey());
+        }
+        return mKeyId;
+    }
+
     @Override
     public String toString() {
         if (mIconResource == null) {
@@ -16,33 +16,34 @@
 
 package com.droidlogic.tv.settings.widget;
 
-import android.accounts.Account;
-import android.accounts.AccountManager;
 import android.content.Context;
 import android.content.Intent.ShortcutIconResource;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.content.res.Resources.NotFoundException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
-import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
 import android.util.Log;
 import android.util.TypedValue;
 import android.widget.ImageView;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
-import java.net.URL;
-import java.net.URLConnection;
+import java.util.concurrent.Callable;
 
-import com.droidlogic.tv.settings.util.AccountImageHelper;
+import com.droidlogic.tv.settings.util.AccountImageUriCache;
 import com.droidlogic.tv.settings.util.ByteArrayPool;
-import com.droidlogic.tv.settings.util.CachedInputStream;
+import com.droidlogic.tv.settings.util.CancellableInputStream;
+import com.droidlogic.tv.settings.util.DecodeCancelledException;
+import com.droidlogic.tv.settings.util.FileDescriptorDecoder;
+import com.droidlogic.tv.settings.util.ImageHeaderParser;
+import com.droidlogic.tv.settings.util.ResourceCache;
 import com.droidlogic.tv.settings.util.UriUtils;
 
 /**
@@ -56,16 +57,20 @@ import com.droidlogic.tv.settings.util.UriUtils;
 public class BitmapWorkerTask extends AsyncTask<BitmapWorkerOptions, Void, Bitmap> {
 
     private static final String TAG = "BitmapWorker";
-    private static final String GOOGLE_ACCOUNT_TYPE = "com.google";
 
     private static final boolean DEBUG = false;
 
-    private static final int SOCKET_TIMEOUT = 10000;
-    private static final int READ_TIMEOUT = 10000;
-
     private final WeakReference<ImageView> mImageView;
     // a flag for if the bitmap is scaled from original source
     protected boolean mScaled;
+    // the result is held by the memory cache of IconRasterizer
+    private boolean mIconCached;
+    // size of the original source, valid after a bitmap is decoded from a stream
+    private int mOriginalWidth;
+    private int mOriginalHeight;
+    private final CancellationSignal mCancellationSignal = new CancellationSignal();
+    // I/O phase run by the ticket of the load, see fetchOn()
+    private RemoteImageFetch mRemoteFetch;
 
     public BitmapWorkerTask(ImageView imageView) {
         mImageView = new WeakReference<>(imageView);
@@ -104,6 +109,11 @@ public class BitmapWorkerTask extends AsyncTask<BitmapWorkerOptions, Void, Bitma
             } else {
                 Log.e(TAG, "Error loading bitmap - no source!");
             }
+        } catch (DecodeCancelledException e) {
+            if (DEBUG) {
+                Log.d(TAG, "cancelled " + workerOptions.getResourceUri());
+            }
+            return null;
         } catch (IOException e) {
             Log.e(TAG, "Error loading url " + workerOptions.getResourceUri(), e);
             return null;
@@ -129,12 +139,16 @@ public class BitmapWorkerTask extends AsyncTask<BitmapWorkerOptions, Void, Bitma
             Log.d(TAG, "Loading " + iconResource.toString());
         }
         try {
-            Object drawable = loadDrawable(context, iconResource);
-            if (drawable instanceof InputStream) {
+            Object drawable = loadDrawable(context, iconResource, outputOptions);
+            if (drawable instanceof AssetFileDescriptor) {
+                return decodeBitmap((AssetFileDescriptor) drawable, outputOptions);
+            } else if (drawable instanceof InputStream) {
                 // Most of these are bitmaps, so resize properly.
                 return decodeBitmap((InputStream)drawable, outputOptions);
-            } else if (drawable instanceof Drawable){
-                return createIconBitmap((Drawable) drawable, outputOptions);
+            } else if (drawable instanceof Bitmap) {
+                // xml or color rasterized by IconRasterizer
+                mIconCached = true;
+                return (Bitmap) drawable;
             } else {
                 Log.w(TAG, "getBitmapFromResource failed, unrecognized resource: " + drawable);
                 return null;
@@ -152,6 +166,80 @@ public class BitmapWorkerTask extends AsyncTask<BitmapWorkerOptions, Void, Bitma
         return mScaled;
     }
 
+    /**
+     * @return true if the result is a rasterized icon already in the memory cache under
+     * {@link ImageEngine#NAMESPACE_ICON}, it must not be cached again
+     */
+    public final boolean isIconCached() {
+        return mIconCached;
+    }
+
+    /**
+     * @return signal cancelling the reads and the decode of this load, cancelled by
+     * {@link InFlightRequests} together with the task
+     */
+    CancellationSignal getCancellationSignal() {
+        return mCancellationSignal;
+    }
+
+    /**
+     * Lets the ticket of the load fetch a remote source on its I/O thread, the decode then
+     * runs on the decode stage of {@link ImagePipeline} without holding the I/O thread.  Call
+     * before the task is executed with the ticket.
+     */
+    void fetchOn(PriorityScheduler.Ticket ticket, BitmapWorkerOptions options) {
+        if (options.getIconResource() == null && options.getResourceUri() != null
+                && UriUtils.isWebUri(options.getResourceUri())) {
+            mRemoteFetch = new RemoteImageFetch(options, mCancellationSignal);
+            ticket.setFetch(mRemoteFetch);
+        }
+    }
+
+    /**
+     * @return the fetch run by the ticket for options, or a new one to run on this thread
+     */
+    private RemoteImageFetch takeRemoteFetch(BitmapWorkerOptions options) {
+        final RemoteImageFetch fetch = mRemoteFetch;
+        mRemoteFetch = null;
+        return fetch != null && fetch.getOptions() == options ? fetch
+                : new RemoteImageFetch(options, mCancellationSignal);
+    }
+
+    /**
+     * Lets a cancel of the load abort the decode in progress with
+     * {@link BitmapFactory.Options#requestCancelDecode()}, effective before N.  Later releases
+     * rely on {@link CancellableInputStream}, descriptors are decoded to the end.
+     * @param bitmapOptions options of the decode, null when the decode is done
+     */
+    private void setCancelDecodeListener(final BitmapFactory.Options bitmapOptions) {
+        mCancellationSignal.setOnCancelListener(bitmapOptions == null ? null
+                : new CancellationSignal.OnCancelListener() {
+                    @Override
+                    @SuppressWarnings("deprecation")
+                    public void onCancel() {
+                        bitmapOptions.requestCancelDecode();
+                    }
+                });
+    }
+
+    /**
+     * Creates the requested size from a bitmap that is already decoded, e.g. a larger copy
+     * found in memory cache, instead of loading it from the source again.
+     */
+    protected Bitmap deriveBitmap(final BitmapWorkerOptions outputOptions, final Bitmap source) {
+        try {
+            return ImagePipeline.getInstance().postProcess(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    return scaleBitmapIfNecessary(outputOptions, source);
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Error deriving " + outputOptions.getResourceUri(), e);
+            return null;
+        }
+    }
+
     /**
      * Scales the bitmap if either of the dimensions is out of range.
      */
@@ -192,115 +280,192 @@ public class BitmapWorkerTask extends AsyncTask<BitmapWorkerOptions, Void, Bitma
         }
     }
 
-    private Bitmap decodeBitmap(InputStream in, BitmapWorkerOptions options)
+    /**
+     * Decodes the bitmap at the output size in the stages of {@link ImagePipeline}, closes the
+     * stream.  Local streams are read by the decoder directly.
+     */
+    private Bitmap decodeBitmap(final InputStream source, final BitmapWorkerOptions options)
+            throws IOException {
+        try {
+            return ImagePipeline.getInstance().decode(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws IOException {
+                    return decodeStream(source, options);
+                }
+            });
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Decodes the bitmap at the output size from a seekable descriptor, closes the descriptor.
+     */
+    private Bitmap decodeBitmap(final AssetFileDescriptor afd, final BitmapWorkerOptions options)
             throws IOException {
-        CachedInputStream bufferedStream = null;
-        BitmapFactory.Options bitmapOptions = null;
         try {
-            bufferedStream = new CachedInputStream(in);
-            // Let the bufferedStream be able to mark unlimited bytes up to full stream length.
-            // The value that BitmapFactory uses (1024) is too small for detecting bounds
-            bufferedStream.setOverrideMarkLimit(Integer.MAX_VALUE);
-            bitmapOptions = new BitmapFactory.Options();
-            bitmapOptions.inJustDecodeBounds = true;
+            return ImagePipeline.getInstance().decode(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws IOException {
+                    return decodeDescriptor(afd, options);
+                }
+            });
+        } finally {
+            FileDescriptorDecoder.close(afd);
+        }
+    }
+
+    private Bitmap decodeStream(InputStream source, BitmapWorkerOptions options)
+            throws IOException {
+        BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
+        InputStream stream = null;
+        try {
             if (options.getBitmapConfig() != null) {
                 bitmapOptions.inPreferredConfig = options.getBitmapConfig();
             }
             bitmapOptions.inTempStorage = ByteArrayPool.get16KBPool().allocateChunk();
-            bufferedStream.mark(Integer.MAX_VALUE);
-            BitmapFactory.decodeStream(bufferedStream, null, bitmapOptions);
-
-            float heightScale = 1f;
-            {
-                int height = options.getHeight();
-                if (height > 0) {
-                    heightScale = (float) bitmapOptions.outHeight / height;
-                }
+            // only the header is buffered for known formats.  A fetched body is already in
+            // memory, there are no reads left to cancel and ImageHeaderParser resets it in
+            // place instead of copying it
+            stream = ImageHeaderParser.decodeBounds(source instanceof ByteArrayInputStream
+                    ? source : new CancellableInputStream(source, mCancellationSignal),
+                    bitmapOptions, options.isAutoBitmapConfig());
+            final ScalePlanner plan = planDecode(bitmapOptions, options);
+            setCancelDecodeListener(bitmapOptions);
+            final Bitmap bitmap = BitmapFactory.decodeStream(stream, null, bitmapOptions);
+            throwIfCancelled();
+            return plan.finish(bitmap);
+        } finally {
+            setCancelDecodeListener(null);
+            ByteArrayPool.get16KBPool().releaseChunk(bitmapOptions.inTempStorage);
+            if (stream != null) {
+                stream.close();
             }
+        }
+    }
 
-            float widthScale = 1f;
-            {
-                int width = options.getWidth();
-                if (width > 0) {
-                    widthScale = (float) bitmapOptions.outWidth / width;
-                }
+    /**
+     * Decodes bounds and pixels directly from the file, without copying it.
+     */
+    private Bitmap decodeDescriptor(AssetFileDescriptor afd, BitmapWorkerOptions options)
+            throws IOException {
+        BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
+        try {
+            if (options.getBitmapConfig() != null) {
+                bitmapOptions.inPreferredConfig = options.getBitmapConfig();
             }
+            bitmapOptions.inTempStorage = ByteArrayPool.get16KBPool().allocateChunk();
+            FileDescriptorDecoder.decodeBounds(afd, bitmapOptions, options.isAutoBitmapConfig());
+            throwIfCancelled();
+            final ScalePlanner plan = planDecode(bitmapOptions, options);
+            setCancelDecodeListener(bitmapOptions);
+            final Bitmap bitmap = FileDescriptorDecoder.decode(afd, bitmapOptions);
+            throwIfCancelled();
+            return plan.finish(bitmap);
+        } finally {
+            setCancelDecodeListener(null);
+            ByteArrayPool.get16KBPool().releaseChunk(bitmapOptions.inTempStorage);
+        }
+    }
 
-            float scale = heightScale > widthScale ? heightScale : widthScale;
+    /**
+     * the decoder returns a partial or null bitmap when it is cancelled, drop it
+     */
+    private void throwIfCancelled() throws DecodeCancelledException {
+        if (mCancellationSignal.isCanceled()) {
+            throw new DecodeCancelledException();
+        }
+    }
 
-            if (DEBUG) {
-                Log.d("BitmapWorkerTask", "Source bitmap: (" + bitmapOptions.outWidth + "x"
-                        + bitmapOptions.outHeight + ").  Max size: (" + options.getWidth() + "x"
-                        + options.getHeight() + ").  Chosen scale: " + scale + " -> "
-                        + (int) scale);
-            }
+    /**
+     * Plans the decode for the bounds in bitmapOptions, the bitmap is decoded at the output
+     * size without a separate scaling pass.
+     */
+    private ScalePlanner planDecode(BitmapFactory.Options bitmapOptions,
+            BitmapWorkerOptions options) {
+        mOriginalWidth = bitmapOptions.outWidth;
+        mOriginalHeight = bitmapOptions.outHeight;
+        ScalePlanner plan =
+                ScalePlanner.plan(bitmapOptions, options.getWidth(), options.getHeight());
+        mScaled |= plan.isScaled();
+        return plan;
+    }
 
-            bitmapOptions.inJustDecodeBounds = false;
-            if (scale >= 2) {
-                bitmapOptions.inSampleSize = (int) scale;
-            }
-            // Reset buffer to original position and disable the overrideMarkLimit
-            bufferedStream.reset();
-            bufferedStream.setOverrideMarkLimit(0);
-            return scaleBitmapIfNecessary(options,
-                    BitmapFactory.decodeStream(bufferedStream, null,
-                            bitmapOptions));
+    private Bitmap decodeSnapshot(DiskBitmapCache.Snapshot snapshot,
+            BitmapWorkerOptions options) throws IOException {
+        Bitmap bitmap = decodeBitmap(snapshot.getInputStream(), options);
+        if (bitmap != null) {
+            // the stored bitmap may already be a scaled down copy of the source
+            mScaled |= snapshot.isScaled();
+            mOriginalWidth = snapshot.getOriginalWidth();
+            mOriginalHeight = snapshot.getOriginalHeight();
+        }
+        return bitmap;
+    }
 
-        } finally {
-            if (bitmapOptions != null) {
-                ByteArrayPool.get16KBPool().releaseChunk(bitmapOptions.inTempStorage);
-            }
-            if (bufferedStream != null) {
-                bufferedStream.close();
-            }
+    private void addBitmapToDiskCache(BitmapWorkerOptions options, Bitmap bitmap,
+            HttpImageFetcher.Validators validators) {
+        if (bitmap != null) {
+            DiskBitmapCache.getInstance(options.getContext())
+                    .put(options, bitmap, mOriginalWidth, mOriginalHeight, validators);
         }
     }
 
     private Bitmap getBitmapFromHttp(BitmapWorkerOptions options) throws IOException {
-        URL url = new URL(options.getResourceUri().toString());
-        if (DEBUG) {
-            Log.d(TAG, "Loading " + url);
-        }
+        final RemoteImageFetch fetch = takeRemoteFetch(options);
         try {
-            URLConnection connection = url.openConnection();
-            connection.setConnectTimeout(SOCKET_TIMEOUT);
-            connection.setReadTimeout(READ_TIMEOUT);
-            InputStream in = new BufferedInputStream(connection.getInputStream());
-            return decodeBitmap(in, options);
+            fetch.await();
+            final DiskBitmapCache.Snapshot snapshot = fetch.takeSnapshot();
+            if (snapshot != null) {
+                return decodeSnapshot(snapshot, options);
+            }
+            Bitmap bitmap = decodeBitmap(fetch.takeBody(), options);
+            addBitmapToDiskCache(options, bitmap, fetch.getValidators());
+            return bitmap;
         } finally {
+            fetch.release();
             if (DEBUG) {
-                Log.d(TAG, "loading done "+url);
+                Log.d(TAG, "loading done " + options.getResourceUri());
             }
         }
     }
 
     private Bitmap getBitmapFromContent(BitmapWorkerOptions options) throws IOException {
-        InputStream bitmapStream =
-                options.getContext().getContentResolver().openInputStream(options.getResourceUri());
-        if (bitmapStream != null) {
-            return decodeBitmap(bitmapStream, options);
+        // not disk cached, the provider is local and its data may change behind the same uri
+        final Bitmap bitmap;
+        AssetFileDescriptor afd = options.getContext().getContentResolver()
+                .openAssetFileDescriptor(options.getResourceUri(), "r");
+        if (afd != null) {
+            if (FileDescriptorDecoder.isSeekable(afd)) {
+                bitmap = decodeBitmap(afd, options);
+            } else {
+                // pipe from the provider
+                bitmap = decodeBitmap(afd.createInputStream(), options);
+            }
+            return bitmap;
         } else {
-            Log.w(TAG, "Content provider returned a null InputStream when trying to " +
+            Log.w(TAG, "Content provider returned a null descriptor when trying to " +
                     "open resource.");
             return null;
         }
     }
 
     /**
-     * load drawable for non-bitmap resource or InputStream for bitmap resource without
-     * caching Bitmap in Resources.  So that caller can maintain a different caching
+     * load rasterized bitmap for non-bitmap resource or InputStream for bitmap resource
+     * without caching Bitmap in Resources.  So that caller can maintain a different caching
      * storage with less memory used.
-     * @return  either {@link Drawable} for xml and ColorDrawable <br>
-     *          or {@link InputStream} for Bitmap resource
+     * @return  either {@link Bitmap} of the requested size for xml and ColorDrawable <br>
+     *          or {@link AssetFileDescriptor} for uncompressed Bitmap resource <br>
+     *          or {@link InputStream} for other Bitmap resource
      */
-    private static Object loadDrawable(Context context, ShortcutIconResource r)
-            throws NameNotFoundException {
-        Resources resources = context.getPackageManager()
-                .getResourcesForApplication(r.packageName);
+    private static Object loadDrawable(Context context, ShortcutIconResource r,
+            BitmapWorkerOptions options) throws NameNotFoundException {
+        final ResourceCache resourceCache = ResourceCache.getInstance(context);
+        Resources resources = resourceCache.getResources(r.packageName);
         if (resources == null) {
             return null;
         }
-        final int id = resources.getIdentifier(r.resourceName, null, null);
+        final int id = resourceCache.getIdentifier(r.packageName, resources, r.resourceName);
         if (id == 0) {
             Log.e(TAG, "Couldn't get resource " + r.resourceName + " in resources of "
                     + r.packageName);
@@ -311,69 +476,35 @@ public class BitmapWorkerTask extends AsyncTask<BitmapWorkerOptions, Void, Bitma
         if ((value.type == TypedValue.TYPE_STRING && value.string.toString().endsWith(".xml")) || (
                 value.type >= TypedValue.TYPE_FIRST_COLOR_INT
                 && value.type <= TypedValue.TYPE_LAST_COLOR_INT)) {
-            return resources.getDrawable(id);
-        }
-        return resources.openRawResource(id, value);
-    }
-
-    private static Bitmap createIconBitmap(Drawable drawable, BitmapWorkerOptions workerOptions) {
-        // Some drawables have an intrinsic width and height of -1. In that case
-        // size it to our output.
-        int width = drawable.getIntrinsicWidth();
-        if (width == -1) {
-            width = workerOptions.getWidth();
+            return ImageEngine.getInstance(context).getIconRasterizer()
+                    .getIcon(resources, r.packageName, id, options);
         }
-        int height = drawable.getIntrinsicHeight();
-        if (height == -1) {
-            height = workerOptions.getHeight();
+        AssetFileDescriptor afd = FileDescriptorDecoder.openResource(resources, id);
+        if (afd != null) {
+            return afd;
         }
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(bitmap);
-        drawable.setBounds(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight());
-        drawable.draw(canvas);
-        return bitmap;
+        return resources.openRawResource(id, value);
     }
 
     public static Drawable getDrawable(Context context, ShortcutIconResource iconResource)
             throws NameNotFoundException {
-        Resources resources =
-                context.getPackageManager().getResourcesForApplication(iconResource.packageName);
-        int id = resources.getIdentifier(iconResource.resourceName, null, null);
+        final ResourceCache resourceCache = ResourceCache.getInstance(context);
+        Resources resources = resourceCache.getResources(iconResource.packageName);
+        int id = resourceCache.getIdentifier(iconResource.packageName, resources,
+                iconResource.resourceName);
         if (id == 0) {
             throw new NameNotFoundException();
         }
         return resources.getDrawable(id);
     }
 
+    /**
+     * Loads the picture of the account on this thread, the picture uri is resolved once and
+     * kept in {@link AccountImageUriCache}.
+     */
     private Bitmap getAccountImage(BitmapWorkerOptions options) {
-        String accountName = UriUtils.getAccountName(options.getResourceUri());
-        Context context = options.getContext();
-
-        if (accountName != null && context != null) {
-            Account thisAccount = null;
-            for (Account account : AccountManager.get(context).
-                    getAccountsByType(GOOGLE_ACCOUNT_TYPE)) {
-                if (account.name.equals(accountName)) {
-                    thisAccount = account;
-                    break;
-                }
-            }
-            if (thisAccount != null) {
-                String picUriString = AccountImageHelper.getAccountPictureUri(context, thisAccount);
-                if (picUriString != null) {
-                    BitmapWorkerOptions.Builder optionBuilder =
-                            new BitmapWorkerOptions.Builder(context)
-                            .width(options.getWidth())
-                                    .height(options.getHeight())
-                                    .cacheFlag(options.getCacheFlag())
-                                    .bitmapConfig(options.getBitmapConfig())
-                                    .resource(Uri.parse(picUriString));
-                    return BitmapDownloader.getInstance(context)
-                            .loadBitmapBlocking(optionBuilder.build());
-                }
-                return null;
-            }
-        }
-        return null;
+        BitmapWorkerOptions pictureOptions =
+                AccountImageUriCache.getInstance().resolvePictureOptions(options);
+        return pictureOptions == null ? null : retrieveBitmap(pictureOptions);
     }
 }
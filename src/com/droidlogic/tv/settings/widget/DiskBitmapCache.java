@@ -0,0 +1,681 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.widget;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounded on-disk LRU cache of bitmaps, the tier behind the memory caches of
+ * {@link BitmapDownloader} and {@link DrawableDownloader}.
+ * <p>
+ * Entries are keyed by {@link BitmapWorkerOptions#getCacheKey()}, the bitmap config and the
+ * size buckets of the requested width and height, so each bucket keeps an encoding that is
+ * already downscaled for it.  The LRU order survives process restarts through an append-only
+ * journal, which is rebuilt when it collects too many lines that no longer describe a live
+ * entry.
+ * <p>
+ * Only http sources are stored here.  Android resources and content URIs are local, they are
+ * cheap enough to decode again and a content provider may change its data behind the same
+ * uri.  Entries keep the validators and freshness of their response, see
+ * {@link HttpImageFetcher}.
+ */
+class DiskBitmapCache {
+
+    private static final String TAG = "DiskBitmapCache";
+
+    private static final boolean DEBUG = false;
+
+    private static final String CACHE_DIR = "bitmap_cache";
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String JOURNAL_MAGIC = "droidlogic.DiskBitmapCache";
+    // 2: buckets keyed by width and height size classes
+    private static final String JOURNAL_VERSION = "2";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    // hard limit for bitmap disk cache in MB
+    private static final int CACHE_HARD_LIMIT = 20;
+
+    // rebuild the journal once it holds this many lines not describing a live entry
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private static final int JPEG_QUALITY = 90;
+
+    // journal value of a missing ETag
+    private static final String NO_ETAG = "-";
+
+    /**
+     * disk cache item structure, one per line of CLEAN in the journal
+     */
+    private static class Entry {
+        final String mFileName;
+        final long mLength;
+        final int mWidth;
+        final int mHeight;
+        final int mOriginalWidth;
+        final int mOriginalHeight;
+        final HttpImageFetcher.Validators mValidators;
+
+        Entry(String fileName, long length, int width, int height, int originalWidth,
+                int originalHeight, HttpImageFetcher.Validators validators) {
+            mFileName = fileName;
+            mLength = length;
+            mWidth = width;
+            mHeight = height;
+            mOriginalWidth = originalWidth;
+            mOriginalHeight = originalHeight;
+            mValidators = validators;
+        }
+
+        boolean isScaled() {
+            return mWidth != mOriginalWidth || mHeight != mOriginalHeight;
+        }
+
+        /**
+         * the stored bitmap can be used when it is the original source or it is at least as
+         * large as the requested output in one dimension (we never scale up)
+         */
+        boolean canServe(BitmapWorkerOptions options) {
+            return !isScaled() || mHeight >= options.getHeight() || mWidth >= options.getWidth();
+        }
+
+        String toJournalLine() {
+            String line = CLEAN + ' ' + mFileName + ' ' + mLength + ' ' + mWidth + ' ' + mHeight
+                    + ' ' + mOriginalWidth + ' ' + mOriginalHeight;
+            if (mValidators != HttpImageFetcher.Validators.NONE) {
+                line += ' ' + encodeETag(mValidators.mETag) + ' ' + mValidators.mLastModified
+                        + ' ' + mValidators.mExpires;
+            }
+            return line;
+        }
+    }
+
+    /**
+     * A cached bitmap opened for reading, the caller must decode and close the stream.
+     */
+    static class Snapshot {
+        private final InputStream mInputStream;
+        private final Entry mEntry;
+
+        Snapshot(InputStream inputStream, Entry entry) {
+            mInputStream = inputStream;
+            mEntry = entry;
+        }
+
+        InputStream getInputStream() {
+            return mInputStream;
+        }
+
+        /**
+         * closes the stream when the snapshot is not decoded, e.g. replaced by a new download
+         */
+        void close() {
+            try {
+                mInputStream.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * @return validators of the http response the bitmap was decoded from,
+         * {@link HttpImageFetcher.Validators#NONE} for entries written without them
+         */
+        HttpImageFetcher.Validators getValidators() {
+            return mEntry.mValidators;
+        }
+
+        int getOriginalWidth() {
+            return mEntry.mOriginalWidth;
+        }
+
+        int getOriginalHeight() {
+            return mEntry.mOriginalHeight;
+        }
+
+        /**
+         * indicate if the stored bitmap is scaled down from original source
+         */
+        boolean isScaled() {
+            return mEntry.isScaled();
+        }
+    }
+
+    private static DiskBitmapCache sDiskBitmapCache;
+
+    private static final Object sDiskBitmapCacheLock = new Object();
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    // access ordered, the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(0, 0.75f, true);
+    private Writer mJournalWriter;
+    private boolean mInitialized;
+    private long mSize;
+    private int mRedundantOpCount;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * get the singleton DiskBitmapCache for the application
+     */
+    static DiskBitmapCache getInstance(Context context) {
+        if (sDiskBitmapCache == null) {
+            synchronized (sDiskBitmapCacheLock) {
+                if (sDiskBitmapCache == null) {
+                    sDiskBitmapCache = new DiskBitmapCache(context);
+                }
+            }
+        }
+        return sDiskBitmapCache;
+    }
+
+    private DiskBitmapCache(Context context) {
+        // journal is read lazily on first access, which always happens on a worker thread
+        mDirectory = new File(context.getApplicationContext().getCacheDir(), CACHE_DIR);
+        mMaxSize = 1024L * 1024 * CACHE_HARD_LIMIT;
+    }
+
+    /**
+     * Same width and height size classes as the memory cache buckets of
+     * {@link BitmapDownloader}.
+     */
+    private static String getBucketKey(BitmapWorkerOptions options) {
+        final Bitmap.Config bitmapConfig = options.getBitmapConfig();
+        return options.getCacheKey() + ":"
+                + (bitmapConfig == null ? (options.isAutoBitmapConfig() ? "auto" : "")
+                        : bitmapConfig.ordinal())
+                + ":" + BitmapDownloader.getSizeClass(options.getWidth())
+                + "x" + BitmapDownloader.getSizeClass(options.getHeight());
+    }
+
+    private static String getFileName(String bucketKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5")
+                    .digest(bucketKey.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // MD5 is always present on Android
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Opens the cached bitmap for the options, returns null on a miss or if disk cache is
+     * disabled by {@link BitmapWorkerOptions#CACHE_FLAG_DISK_DISABLED}.
+     */
+    Snapshot get(BitmapWorkerOptions options) {
+        if (!options.isDiskCacheEnabled()) {
+            return null;
+        }
+        final String fileName = getFileName(getBucketKey(options));
+        synchronized (this) {
+            if (!ensureInitialized()) {
+                return null;
+            }
+            Entry entry = mEntries.get(fileName);
+            if (entry == null || !entry.canServe(options)) {
+                mMissCount++;
+                return null;
+            }
+            InputStream in;
+            try {
+                in = new FileInputStream(new File(mDirectory, fileName));
+            } catch (FileNotFoundException e) {
+                Log.w(TAG, "cached file " + fileName + " is gone, dropping entry");
+                removeEntry(entry);
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+            mRedundantOpCount++;
+            writeJournalLine(READ + ' ' + fileName);
+            if (DEBUG) {
+                Log.d(TAG, "hit " + options + " " + entry.mWidth + "x" + entry.mHeight);
+            }
+            return new Snapshot(in, entry);
+        }
+    }
+
+    /**
+     * Stores the bitmap decoded from an http response, unless a larger one from the same
+     * response is already in the bucket.  An entry from an older response is replaced.
+     */
+    void put(BitmapWorkerOptions options, Bitmap bitmap, int originalWidth, int originalHeight,
+            HttpImageFetcher.Validators validators) {
+        if (bitmap == null || !options.isDiskCacheEnabled()) {
+            return;
+        }
+        final String fileName = getFileName(getBucketKey(options));
+        synchronized (this) {
+            if (!ensureInitialized()) {
+                return;
+            }
+            Entry entry = mEntries.get(fileName);
+            if (entry != null && entry.mWidth >= bitmap.getWidth()
+                    && entry.mHeight >= bitmap.getHeight() && entry.mValidators.isFresh()) {
+                return;
+            }
+        }
+
+        // compress outside of the lock, temp file name is unique per writing thread
+        final File tmpFile = new File(mDirectory,
+                fileName + "." + Thread.currentThread().getId() + ".tmp");
+        boolean written = false;
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmpFile));
+            written = bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG
+                    : Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } catch (IOException e) {
+            Log.w(TAG, "failed writing " + tmpFile, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    written = false;
+                }
+            }
+        }
+        if (!written) {
+            tmpFile.delete();
+            return;
+        }
+
+        synchronized (this) {
+            final File file = new File(mDirectory, fileName);
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                return;
+            }
+            Entry old = mEntries.remove(fileName);
+            if (old != null) {
+                mSize -= old.mLength;
+                mRedundantOpCount++;
+            }
+            Entry entry = new Entry(fileName, file.length(), bitmap.getWidth(),
+                    bitmap.getHeight(), originalWidth, originalHeight, validators);
+            mEntries.put(fileName, entry);
+            mSize += entry.mLength;
+            mPutCount++;
+            writeJournalLine(entry.toJournalLine());
+            if (DEBUG) {
+                Log.d(TAG, "put " + options + " " + entry.mWidth + "x" + entry.mHeight
+                        + " " + entry.mLength + " bytes");
+            }
+            trimToSize();
+            if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                    && mRedundantOpCount >= mEntries.size()) {
+                rebuildJournal();
+            }
+        }
+    }
+
+    /**
+     * Updates the validators and freshness of the entry for the options after the server
+     * answered 304 Not Modified.
+     */
+    synchronized void refresh(BitmapWorkerOptions options,
+            HttpImageFetcher.Validators validators) {
+        if (!options.isDiskCacheEnabled() || !ensureInitialized()) {
+            return;
+        }
+        final String fileName = getFileName(getBucketKey(options));
+        Entry old = mEntries.get(fileName);
+        if (old == null) {
+            return;
+        }
+        Entry entry = new Entry(fileName, old.mLength, old.mWidth, old.mHeight,
+                old.mOriginalWidth, old.mOriginalHeight, validators);
+        mEntries.put(fileName, entry);
+        mRedundantOpCount++;
+        writeJournalLine(entry.toJournalLine());
+    }
+
+    /**
+     * Removes all entries and files.
+     */
+    synchronized void clear() {
+        if (!ensureInitialized()) {
+            return;
+        }
+        for (Entry entry : mEntries.values()) {
+            new File(mDirectory, entry.mFileName).delete();
+        }
+        mEntries.clear();
+        mSize = 0;
+        rebuildJournal();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getPutCount() {
+        return mPutCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format(Locale.US,
+                "DiskBitmapCache[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mSize, mMaxSize, mHitCount, mMissCount, hitPercent);
+    }
+
+    private void removeEntry(Entry entry) {
+        mEntries.remove(entry.mFileName);
+        new File(mDirectory, entry.mFileName).delete();
+        mSize -= entry.mLength;
+        mRedundantOpCount += 2;
+        writeJournalLine(REMOVE + ' ' + entry.mFileName);
+    }
+
+    private void trimToSize() {
+        while (mSize > mMaxSize && !mEntries.isEmpty()) {
+            Entry eldest = mEntries.values().iterator().next();
+            removeEntry(eldest);
+            mEvictionCount++;
+            if (DEBUG) {
+                Log.d(TAG, "evict " + eldest.mFileName);
+            }
+        }
+    }
+
+    private boolean ensureInitialized() {
+        if (mInitialized) {
+            return mJournalWriter != null;
+        }
+        mInitialized = true;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "can't create " + mDirectory + ", disk cache disabled");
+            return false;
+        }
+        final File journal = new File(mDirectory, JOURNAL_FILE);
+        if (journal.exists()) {
+            try {
+                final boolean truncated = readJournal(journal);
+                processDirectory();
+                if (truncated) {
+                    // appending would continue the partial line
+                    rebuildJournal();
+                    return mJournalWriter != null;
+                }
+                mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(journal, true), StandardCharsets.US_ASCII));
+                return true;
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "journal is corrupt, removing disk cache", e);
+            }
+        }
+        deleteContents();
+        mEntries.clear();
+        mSize = 0;
+        rebuildJournal();
+        return mJournalWriter != null;
+    }
+
+    /**
+     * Reads the entries of the journal.  The last line is dropped when it is incomplete or
+     * malformed, the process was killed while appending it; a malformed line before it means
+     * the journal is corrupt.
+     * @return true if the journal does not end with a complete line, it must be rebuilt before
+     * appending
+     */
+    private boolean readJournal(File journal) throws IOException {
+        final boolean complete = endsWithNewline(journal);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journal), StandardCharsets.US_ASCII));
+        try {
+            if (!JOURNAL_MAGIC.equals(reader.readLine())
+                    || !JOURNAL_VERSION.equals(reader.readLine())) {
+                throw new IOException("unexpected journal header");
+            }
+            boolean truncated = false;
+            int lineCount = 0;
+            String line = reader.readLine();
+            while (line != null) {
+                final String next = reader.readLine();
+                if (next == null && !complete) {
+                    truncated = true;
+                    break;
+                }
+                try {
+                    readJournalLine(line);
+                } catch (IOException | IllegalArgumentException e) {
+                    if (next != null) {
+                        throw e;
+                    }
+                    truncated = true;
+                    break;
+                }
+                lineCount++;
+                line = next;
+            }
+            if (truncated) {
+                Log.w(TAG, "dropping incomplete journal line: " + line);
+            }
+            mRedundantOpCount = lineCount - mEntries.size();
+            // also rebuild when the header alone lacks its newline
+            return truncated || !complete;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final long length = in.length();
+            if (length == 0) {
+                return false;
+            }
+            in.seek(length - 1);
+            return in.read() == '\n';
+        } finally {
+            in.close();
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts.length == 2 && REMOVE.equals(parts[0])) {
+            mEntries.remove(parts[1]);
+        } else if (parts.length == 2 && READ.equals(parts[0])) {
+            // moves the entry to the head of LRU order
+            mEntries.get(parts[1]);
+        } else if ((parts.length == 7 || parts.length == 10) && CLEAN.equals(parts[0])) {
+            HttpImageFetcher.Validators validators = HttpImageFetcher.Validators.NONE;
+            if (parts.length == 10) {
+                validators = new HttpImageFetcher.Validators(decodeETag(parts[7]),
+                        Long.parseLong(parts[8]), Long.parseLong(parts[9]));
+            }
+            mEntries.put(parts[1], new Entry(parts[1], Long.parseLong(parts[2]),
+                    Integer.parseInt(parts[3]), Integer.parseInt(parts[4]),
+                    Integer.parseInt(parts[5]), Integer.parseInt(parts[6]), validators));
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    private static String encodeETag(String eTag) {
+        if (eTag == null) {
+            return NO_ETAG;
+        }
+        try {
+            // ETag is a quoted string, may contain spaces
+            return URLEncoder.encode(eTag, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decodeETag(String value) {
+        if (NO_ETAG.equals(value)) {
+            return null;
+        }
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * drop entries whose file is missing, delete files not referenced by the journal
+     */
+    private void processDirectory() {
+        mSize = 0;
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (new File(mDirectory, entry.mFileName).length() != entry.mLength) {
+                it.remove();
+            } else {
+                mSize += entry.mLength;
+            }
+        }
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!JOURNAL_FILE.equals(name) && !mEntries.containsKey(name)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void deleteContents() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private void rebuildJournal() {
+        closeJournalWriter();
+        final File journal = new File(mDirectory, JOURNAL_FILE);
+        final File journalTmp = new File(mDirectory, JOURNAL_FILE_TMP);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(journalTmp), StandardCharsets.US_ASCII));
+            writer.write(JOURNAL_MAGIC);
+            writer.write('\n');
+            writer.write(JOURNAL_VERSION);
+            writer.write('\n');
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                writer.write(entry.getValue().toJournalLine());
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            if (!journalTmp.renameTo(journal)) {
+                throw new IOException("can't rename " + journalTmp);
+            }
+            mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(journal, true), StandardCharsets.US_ASCII));
+            mRedundantOpCount = 0;
+        } catch (IOException e) {
+            Log.w(TAG, "failed rebuilding journal, disk cache disabled", e);
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+            mJournalWriter = null;
+        }
+    }
+
+    private void writeJournalLine(String line) {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.write(line);
+            mJournalWriter.write('\n');
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "failed writing journal", e);
+        }
+    }
+
+    private void closeJournalWriter() {
+        if (mJournalWriter != null) {
+            try {
+                mJournalWriter.close();
+            } catch (IOException ignored) {
+            }
+            mJournalWriter = null;
+        }
+    }
+}
@@ -16,7 +16,6 @@
 
 package com.droidlogic.tv.settings.widget;
 
-import android.app.ActivityManager;
 import android.content.Context;
 import android.content.Intent.ShortcutIconResource;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -24,22 +23,24 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
-import android.util.LruCache;
 import android.widget.ImageView;
 
 import com.droidlogic.tv.settings.R;
 import com.droidlogic.tv.settings.util.AccountImageChangeObserver;
+import com.droidlogic.tv.settings.util.AccountImageUriCache;
 import com.droidlogic.tv.settings.util.UriUtils;
 
+import java.io.PrintWriter;
 import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.List;
 
 /**
  * Downloader class which loads a resource URI into an image view or triggers a callback
  * <p>
- * This class adds a LRU cache over DrawableLoader.
+ * This class adds a LRU cache over DrawableLoader.  The cache budget and worker threads are
+ * shared with {@link BitmapDownloader}, see {@link ImageEngine}.
  * <p>
  * Calling getBitmap() or loadBitmap() will return a RefcountBitmapDrawable with initial refcount =
  * 2 by the cache table and by caller.  You must call releaseRef() when you are done with the resource.
@@ -55,33 +56,15 @@ public class DrawableDownloader {
 
     private static final boolean DEBUG = false;
 
-    private static final int CORE_POOL_SIZE = 5;
-
-    // thread pool for loading non android-resources such as http,  content
-    private static final Executor BITMAP_DOWNLOADER_THREAD_POOL_EXECUTOR =
-            Executors.newFixedThreadPool(CORE_POOL_SIZE);
-
-    private static final int CORE_RESOURCE_POOL_SIZE = 1;
-
-    // thread pool for loading android resources,  we use separate thread pool so
-    // that network loading will not block local android icons
-    private static final Executor BITMAP_RESOURCE_DOWNLOADER_THREAD_POOL_EXECUTOR =
-            Executors.newFixedThreadPool(CORE_RESOURCE_POOL_SIZE);
-
-    // 1/4 of max memory is used for bitmap mem cache
-    private static final int MEM_TO_CACHE = 4;
-
-    // hard limit for bitmap mem cache in MB
-    private static final int CACHE_HARD_LIMIT = 32;
-
     /**
-     * bitmap cache item structure saved in LruCache
+     * bitmap cache item structure saved in the memory cache of {@link ImageEngine}
      */
-    private static class BitmapItem {
+    private static class BitmapItem implements ImageEngine.CacheEntry {
         final int mOriginalWidth;
         final int mOriginalHeight;
         final ArrayList<BitmapDrawable> mBitmaps = new ArrayList<>(3);
         int mByteCount;
+        int mSavedByteCount;
         public BitmapItem(int originalWidth, int originalHeight) {
             mOriginalWidth = originalWidth;
             mOriginalHeight = originalHeight;
@@ -125,30 +108,56 @@ public class DrawableDownloader {
             }
             mBitmaps.add(i, d);
             mByteCount += RecycleBitmapPool.getSize(d.getBitmap());
+            if (d.getBitmap().getConfig() == Bitmap.Config.RGB_565) {
+                mSavedByteCount += RecycleBitmapPool.getSize(d.getBitmap());
+            }
         }
 
         void clear() {
             for (int i = 0, c = mBitmaps.size(); i < c; i++) {
                 BitmapDrawable d = mBitmaps.get(i);
                 if (d instanceof RefcountBitmapDrawable) {
-                    ((RefcountBitmapDrawable) d).getRefcountObject().releaseRef();
+                    RefcountObject<Bitmap> object =
+                            ((RefcountBitmapDrawable) d).getRefcountObject();
+                    object.markEvicted();
+                    object.releaseRef();
                 }
             }
             mBitmaps.clear();
             mByteCount = 0;
+            mSavedByteCount = 0;
+        }
+
+        @Override
+        public int getByteCount() {
+            return mByteCount;
+        }
+
+        @Override
+        public int getSavedByteCount() {
+            return mSavedByteCount;
+        }
+
+        @Override
+        public void onEvicted() {
+            clear();
         }
     }
 
     public static abstract class BitmapCallback {
-        SoftReference<DrawableLoader> mTask;
+        SoftReference<InFlightRequests.Subscription<Drawable>> mSubscription;
 
         public abstract void onBitmapRetrieved(Drawable bitmap);
     }
 
     private final Context mContext;
-    private final LruCache<String, BitmapItem> mMemoryCache;
+    private final ImageEngine mEngine;
+    private final LongLruCache<ImageEngine.CacheEntry> mMemoryCache;
     private final RecycleBitmapPool mRecycledBitmaps;
 
+    // loads currently running, shared by requests for the same image
+    private final InFlightRequests<Drawable> mInFlightRequests = new InFlightRequests<>();
+
     private static DrawableDownloader sBitmapDownloader;
 
     private static final Object sBitmapDownloaderLock = new Object();
@@ -167,11 +176,11 @@ public class DrawableDownloader {
         return sBitmapDownloader;
     }
 
-    private static String getBucketKey(String baseKey, Bitmap.Config bitmapConfig) {
-        return new StringBuilder(baseKey.length() + 16).append(baseKey)
-                         .append(":").append(bitmapConfig == null ? "" : bitmapConfig.ordinal())
-                         .toString();
-     }
+    private static long getBucketKey(BitmapWorkerOptions options) {
+        // all sizes of one image share a BitmapItem, no size class in the key
+        return ImageKeys.pack(ImageEngine.NAMESPACE_DRAWABLE, options.getCacheKeyId(),
+                ImageKeys.getConfigCode(options), 0, 0);
+    }
 
     public static Drawable getDrawable(Context context, ShortcutIconResource iconResource)
             throws NameNotFoundException {
@@ -180,40 +189,67 @@ public class DrawableDownloader {
 
     private DrawableDownloader(Context context) {
         mContext = context;
-        int memClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
-                .getMemoryClass();
-        memClass = memClass / MEM_TO_CACHE;
-        if (memClass > CACHE_HARD_LIMIT) {
-            memClass = CACHE_HARD_LIMIT;
-        }
-        int cacheSize = 1024 * 1024 * memClass;
-        mMemoryCache = new LruCache<String, BitmapItem>(cacheSize) {
-            @Override
-            protected int sizeOf(String key, BitmapItem bitmap) {
-                return bitmap.mByteCount;
-            }
-            @Override
-            protected void entryRemoved(
-                    boolean evicted, String key, BitmapItem oldValue, BitmapItem newValue) {
-                if (evicted) {
-                    oldValue.clear();
-                }
-            }
-        };
-        mRecycledBitmaps = new RecycleBitmapPool();
+        mEngine = ImageEngine.getInstance(context);
+        mMemoryCache = mEngine.getMemoryCache();
+        mRecycledBitmaps = mEngine.getRecycledBitmaps();
+        mEngine.getWarmStartSnapshot().replay(ImageEngine.NAMESPACE_DRAWABLE,
+                new WarmStartSnapshot.Replayer() {
+                    @Override
+                    public Object replay(BitmapWorkerOptions options) {
+                        return prefetch(options);
+                    }
+
+                    @Override
+                    public void cancel(Object handle) {
+                        cancelDownload(handle);
+                    }
+                });
     }
 
     /**
-     * trim memory cache to 0~1 * maxSize
+     * trim memory cache to 0~1 * maxSize,  the budget is shared with {@link BitmapDownloader}
      */
     public void trimTo(float amount) {
-        if (amount == 0f) {
-            mMemoryCache.evictAll();
-        } else {
-            mMemoryCache.trimToSize((int) (amount * mMemoryCache.maxSize()));
+        mEngine.trimTo(amount);
+    }
+
+    /**
+     * @return bytes of cached bitmaps saved by decoding opaque images as RGB_565, see
+     * {@link BitmapWorkerOptions.Builder#autoBitmapConfig(boolean)}
+     */
+    public long getAutoConfigSavedBytes() {
+        return mEngine.getAutoConfigSavedBytes(ImageEngine.NAMESPACE_DRAWABLE);
+    }
+
+    /**
+     * Prints the counters of the front-end if it was created, for
+     * {@link android.app.Activity#dump}.  The shared image engine is printed by
+     * {@link BitmapDownloader#dump}.
+     */
+    public static void dumpIfCreated(String prefix, PrintWriter writer) {
+        final DrawableDownloader downloader;
+        synchronized (sBitmapDownloaderLock) {
+            downloader = sBitmapDownloader;
+        }
+        if (downloader != null) {
+            downloader.dump(prefix, writer);
         }
     }
 
+    /**
+     * Prints the counters of this front-end, for {@link android.app.Activity#dump}.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println(TAG);
+        final String innerPrefix = prefix + "  ";
+        ImageMetrics.getInstance().dumpMemoryLookups(innerPrefix, writer,
+                ImageEngine.NAMESPACE_DRAWABLE);
+        writer.print(innerPrefix);
+        writer.print("auto config saved bytes: ");
+        writer.println(getAutoConfigSavedBytes());
+    }
+
     /**
      * load bitmap in current thread, will *block* current thread.
      * FIXME: Should avoid using this function at all cost.
@@ -225,6 +261,7 @@ public class DrawableDownloader {
         Drawable bitmap = null;
         if (hasAccountImageUri) {
             AccountImageChangeObserver.getInstance().registerChangeUriIfPresent(options);
+            options = getPictureOptions(options);
         } else {
             bitmap = getBitmapFromMemCache(options);
         }
@@ -254,25 +291,33 @@ public class DrawableDownloader {
         Drawable bitmap = null;
         if (hasAccountImageUri) {
             AccountImageChangeObserver.getInstance().registerChangeUriIfPresent(options);
+            options = getPictureOptions(options);
         } else {
             bitmap = getBitmapFromMemCache(options);
         }
 
+        mEngine.getWarmStartSnapshot().recordRequest(ImageEngine.NAMESPACE_DRAWABLE, options,
+                bitmap != null);
         if (bitmap != null) {
             imageView.setImageDrawable(bitmap);
         } else {
-            DrawableLoader task = new DrawableLoader(imageView, mRecycledBitmaps) {
-                @Override
-                protected Drawable doInBackground(BitmapWorkerOptions... params) {
-                    Drawable bitmap = super.doInBackground(params);
-                    if (bitmap != null && !hasAccountImageUri) {
-                        addBitmapToMemoryCache(params[0], bitmap, this);
-                    }
-                    return bitmap;
-                }
-            };
-            imageView.setTag(R.id.imageDownloadTask, new SoftReference<DrawableLoader>(task));
-            scheduleTask(task, options);
+            final WeakReference<ImageView> imageViewRef = new WeakReference<>(imageView);
+            InFlightRequests.Subscription<Drawable> subscription = mInFlightRequests.subscribe(
+                    InFlightRequests.getKey(options), options.getPriority(),
+                    new InFlightRequests.Subscriber<Drawable>() {
+                        @Override
+                        public void onResult(Drawable result) {
+                            final ImageView imageView = imageViewRef.get();
+                            if (imageView != null) {
+                                imageView.setImageDrawable(result);
+                            }
+                        }
+                    });
+            imageView.setTag(R.id.imageDownloadTask,
+                    new SoftReference<InFlightRequests.Subscription<Drawable>>(subscription));
+            if (subscription.startsLoad()) {
+                startLoad(subscription.getPending(), options, hasAccountImageUri);
+            }
         }
     }
 
@@ -287,12 +332,64 @@ public class DrawableDownloader {
         final Drawable bitmap = hasAccountImageUri ? null : getBitmapFromMemCache(options);
         if (hasAccountImageUri) {
             AccountImageChangeObserver.getInstance().registerChangeUriIfPresent(options);
+            options = getPictureOptions(options);
         }
 
+        mEngine.getWarmStartSnapshot().recordRequest(ImageEngine.NAMESPACE_DRAWABLE, options,
+                bitmap != null);
         if (bitmap != null) {
             callback.onBitmapRetrieved(bitmap);
             return;
         }
+        InFlightRequests.Subscription<Drawable> subscription = mInFlightRequests.subscribe(
+                InFlightRequests.getKey(options), options.getPriority(),
+                new InFlightRequests.Subscriber<Drawable>() {
+                    @Override
+                    public void onResult(Drawable result) {
+                        callback.onBitmapRetrieved(result);
+                    }
+                });
+        callback.mSubscription =
+                new SoftReference<InFlightRequests.Subscription<Drawable>>(subscription);
+        if (subscription.startsLoad()) {
+            startLoad(subscription.getPending(), options, hasAccountImageUri);
+        }
+    }
+
+    /**
+     * Loads the drawable into memory cache at {@link BitmapWorkerOptions#PRIORITY_PREFETCH},
+     * ahead of a view asking for it.  A view requesting the same image joins the load and
+     * raises it to its own priority.
+     * @return handle to pass to {@link #cancelDownload(Object)}, null if there is nothing to
+     * load
+     */
+    public BitmapCallback prefetch(BitmapWorkerOptions options) {
+        if (!options.isMemCacheEnabled() || UriUtils.isAccountImageUri(options.getResourceUri())) {
+            return null;
+        }
+        BitmapItem item = (BitmapItem) mMemoryCache.get(getBucketKey(options));
+        if (item != null && item.findDrawable(options) != null) {
+            return null;
+        }
+        BitmapCallback callback = new BitmapCallback() {
+            @Override
+            public void onBitmapRetrieved(Drawable bitmap) {
+                // kept in memory cache by the load, drop the reference of the caller
+                if (bitmap instanceof RefcountBitmapDrawable) {
+                    ((RefcountBitmapDrawable) bitmap).getRefcountObject().releaseRef();
+                }
+            }
+        };
+        getBitmap(options.withPriority(BitmapWorkerOptions.PRIORITY_PREFETCH), callback);
+        return callback;
+    }
+
+    /**
+     * Starts the loader shared by all subscribers of the pending load,  each subscriber
+     * receives its own refcount of the result.
+     */
+    private void startLoad(final InFlightRequests.Pending<Drawable> pending,
+            BitmapWorkerOptions options, final boolean hasAccountImageUri) {
         DrawableLoader task = new DrawableLoader(null, mRecycledBitmaps) {
             @Override
             protected Drawable doInBackground(BitmapWorkerOptions... params) {
@@ -305,44 +402,48 @@ public class DrawableDownloader {
 
             @Override
             protected void onPostExecute(Drawable bitmap) {
-                callback.onBitmapRetrieved(bitmap);
+                List<InFlightRequests.Subscriber<Drawable>> subscribers =
+                        mInFlightRequests.complete(pending);
+                if (subscribers.isEmpty()) {
+                    onCancelled(bitmap);
+                    return;
+                }
+                for (int i = 0, c = subscribers.size(); i < c; i++) {
+                    subscribers.get(i).onResult(i == 0 ? bitmap : createRefCopy(bitmap));
+                }
             }
         };
-        callback.mTask = new SoftReference<DrawableLoader>(task);
-        scheduleTask(task, options);
-    }
-
-    private static void scheduleTask(DrawableLoader task, BitmapWorkerOptions options) {
-        if (options.isFromResource()) {
-            task.executeOnExecutor(BITMAP_RESOURCE_DOWNLOADER_THREAD_POOL_EXECUTOR, options);
-        } else {
-            task.executeOnExecutor(BITMAP_DOWNLOADER_THREAD_POOL_EXECUTOR, options);
-        }
+        PriorityScheduler.Ticket ticket = mEngine.newTicket(options);
+        task.fetchOn(ticket, options);
+        mInFlightRequests.setTask(pending, task, ticket, task.getCancellationSignal());
+        task.executeOnExecutor(ticket, options);
     }
 
     /**
      * Cancel download<p>
+     * The shared load is only cancelled when no other view or callback waits for it.
      * @param key {@link BitmapCallback} or {@link ImageView}
      */
     public boolean cancelDownload(Object key) {
-        DrawableLoader task = null;
+        InFlightRequests.Subscription<Drawable> subscription = null;
         if (key instanceof ImageView) {
             ImageView imageView = (ImageView)key;
-            SoftReference<DrawableLoader> softReference =
-                    (SoftReference<DrawableLoader>) imageView.getTag(R.id.imageDownloadTask);
+            SoftReference<InFlightRequests.Subscription<Drawable>> softReference =
+                    (SoftReference<InFlightRequests.Subscription<Drawable>>)
+                    imageView.getTag(R.id.imageDownloadTask);
             if (softReference != null) {
-                task = softReference.get();
+                subscription = softReference.get();
                 softReference.clear();
             }
         } else if (key instanceof BitmapCallback) {
             BitmapCallback callback = (BitmapCallback)key;
-            if (callback.mTask != null) {
-                task = callback.mTask.get();
-                callback.mTask = null;
+            if (callback.mSubscription != null) {
+                subscription = callback.mSubscription.get();
+                callback.mSubscription = null;
             }
         }
-        if (task != null) {
-            return task.cancel(true);
+        if (subscription != null) {
+            return mInFlightRequests.cancel(subscription);
         }
         return false;
     }
@@ -355,10 +456,12 @@ public class DrawableDownloader {
         if (!(bitmap instanceof BitmapDrawable)) {
             return;
         }
-        String bucketKey = getBucketKey(key.getCacheKey(), key.getBitmapConfig());
-        BitmapItem bitmapItem = mMemoryCache.get(bucketKey);
+        mEngine.getWarmStartSnapshot().recordLoaded(ImageEngine.NAMESPACE_DRAWABLE, key,
+                RecycleBitmapPool.getSize(((BitmapDrawable) bitmap).getBitmap()));
+        long bucketKey = getBucketKey(key);
+        BitmapItem bitmapItem = (BitmapItem) mMemoryCache.get(bucketKey);
         if (DEBUG) {
-            Log.d(TAG, "add cache "+bucketKey);
+            Log.d(TAG, "add cache " + key.getCacheKey());
         }
         if (bitmapItem != null) {
             // remove and re-add to update size
@@ -374,20 +477,27 @@ public class DrawableDownloader {
         mMemoryCache.put(bucketKey, bitmapItem);
     }
 
+    /**
+     * @return options loading the picture of an account image uri when the picture uri is in
+     * {@link AccountImageUriCache}, the load then skips looking up the account.  Otherwise
+     * the options passed in.
+     */
+    private static BitmapWorkerOptions getPictureOptions(BitmapWorkerOptions options) {
+        BitmapWorkerOptions pictureOptions =
+                AccountImageUriCache.getInstance().getPictureOptions(options);
+        return pictureOptions != null ? pictureOptions : options;
+    }
+
     private Drawable getBitmapFromMemCache(BitmapWorkerOptions key) {
-        String bucketKey =
-                getBucketKey(key.getCacheKey(), key.getBitmapConfig());
-        BitmapItem item = mMemoryCache.get(bucketKey);
-        if (item != null) {
-            return createRefCopy(item.findDrawable(key));
-        }
-        return null;
+        BitmapItem item = (BitmapItem) mMemoryCache.get(getBucketKey(key));
+        final Drawable drawable = item != null ? createRefCopy(item.findDrawable(key)) : null;
+        ImageMetrics.getInstance().recordMemoryLookup(ImageEngine.NAMESPACE_DRAWABLE, key,
+                drawable != null);
+        return drawable;
     }
 
     public BitmapDrawable getLargestBitmapFromMemCache(BitmapWorkerOptions key) {
-        String bucketKey =
-                getBucketKey(key.getCacheKey(), key.getBitmapConfig());
-        BitmapItem item = mMemoryCache.get(bucketKey);
+        BitmapItem item = (BitmapItem) mMemoryCache.get(getBucketKey(key));
         if (item != null) {
             return (BitmapDrawable) createRefCopy(item.findLargestDrawable(key));
         }
@@ -16,33 +16,38 @@
 
 package com.droidlogic.tv.settings.widget;
 
-import android.accounts.Account;
-import android.accounts.AccountManager;
 import android.content.Context;
 import android.content.Intent.ShortcutIconResource;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.content.res.Resources.NotFoundException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
 import android.util.Log;
 import android.util.TypedValue;
 import android.widget.ImageView;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.net.SocketTimeoutException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.util.concurrent.Callable;
 
-import com.droidlogic.tv.settings.util.AccountImageHelper;
+import com.droidlogic.tv.settings.util.AccountImageUriCache;
 import com.droidlogic.tv.settings.util.ByteArrayPool;
-import com.droidlogic.tv.settings.util.CachedInputStream;
+import com.droidlogic.tv.settings.util.CancellableInputStream;
+import com.droidlogic.tv.settings.util.DecodeCancelledException;
+import com.droidlogic.tv.settings.util.FileDescriptorDecoder;
+import com.droidlogic.tv.settings.util.ImageHeaderParser;
+import com.droidlogic.tv.settings.util.ResourceCache;
 import com.droidlogic.tv.settings.util.UriUtils;
 
 /**
@@ -56,17 +61,16 @@ import com.droidlogic.tv.settings.util.UriUtils;
 class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
 
     private static final String TAG = "DrawableLoader";
-    private static final String GOOGLE_ACCOUNT_TYPE = "com.google";
 
     private static final boolean DEBUG = false;
 
-    private static final int SOCKET_TIMEOUT = 10000;
-    private static final int READ_TIMEOUT = 10000;
-
     private final WeakReference<ImageView> mImageView;
     private int mOriginalWidth;
     private int mOriginalHeight;
     private final RecycleBitmapPool mRecycledBitmaps;
+    private final CancellationSignal mCancellationSignal = new CancellationSignal();
+    // I/O phase run by the ticket of the load, see fetchOn()
+    private RemoteImageFetch mRemoteFetch;
 
     private final RefcountObject.RefcountListener mRefcountListener =
             new RefcountObject.RefcountListener() {
@@ -90,6 +94,54 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
         return mOriginalHeight;
     }
 
+    /**
+     * @return signal cancelling the reads and the decode of this load, cancelled by
+     * {@link InFlightRequests} together with the task
+     */
+    CancellationSignal getCancellationSignal() {
+        return mCancellationSignal;
+    }
+
+    /**
+     * Lets the ticket of the load fetch a remote source on its I/O thread, the decode then
+     * runs on the decode stage of {@link ImagePipeline} without holding the I/O thread.  Call
+     * before the task is executed with the ticket.
+     */
+    void fetchOn(PriorityScheduler.Ticket ticket, BitmapWorkerOptions options) {
+        if (options.getIconResource() == null && options.getResourceUri() != null
+                && UriUtils.isWebUri(options.getResourceUri())) {
+            mRemoteFetch = new RemoteImageFetch(options, mCancellationSignal);
+            ticket.setFetch(mRemoteFetch);
+        }
+    }
+
+    /**
+     * @return the fetch run by the ticket for options, or a new one to run on this thread
+     */
+    private RemoteImageFetch takeRemoteFetch(BitmapWorkerOptions options) {
+        final RemoteImageFetch fetch = mRemoteFetch;
+        mRemoteFetch = null;
+        return fetch != null && fetch.getOptions() == options ? fetch
+                : new RemoteImageFetch(options, mCancellationSignal);
+    }
+
+    /**
+     * Lets a cancel of the load abort the decode in progress with
+     * {@link BitmapFactory.Options#requestCancelDecode()}, effective before N.  Later releases
+     * rely on {@link CancellableInputStream}, descriptors are decoded to the end.
+     * @param bitmapOptions options of the decode, null when the decode is done
+     */
+    private void setCancelDecodeListener(final BitmapFactory.Options bitmapOptions) {
+        mCancellationSignal.setOnCancelListener(bitmapOptions == null ? null
+                : new CancellationSignal.OnCancelListener() {
+                    @Override
+                    @SuppressWarnings("deprecation")
+                    public void onCancel() {
+                        bitmapOptions.requestCancelDecode();
+                    }
+                });
+    }
+
     @Override
     protected Drawable doInBackground(BitmapWorkerOptions... params) {
 
@@ -120,6 +172,11 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
             } else {
                 Log.e(TAG, "Error loading bitmap - no source!");
             }
+        } catch (DecodeCancelledException e) {
+            if (DEBUG) {
+                Log.d(TAG, "cancelled " + workerOptions.getResourceUri());
+            }
+            return null;
         } catch (IOException e) {
             Log.e(TAG, "Error loading url " + workerOptions.getResourceUri(), e);
             return null;
@@ -156,7 +213,9 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
         }
         try {
             Object drawable = loadDrawable(outputOptions.getContext(), iconResource);
-            if (drawable instanceof InputStream) {
+            if (drawable instanceof AssetFileDescriptor) {
+                return decodeBitmap((AssetFileDescriptor) drawable, outputOptions);
+            } else if (drawable instanceof InputStream) {
                 // Most of these are bitmaps, so resize properly.
                 return decodeBitmap((InputStream)drawable, outputOptions);
             } else if (drawable instanceof Drawable){
@@ -177,109 +236,196 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
         }
     }
 
-    private Drawable decodeBitmap(InputStream in, BitmapWorkerOptions options)
+    /**
+     * Decodes the bitmap in the stages of {@link ImagePipeline}, closes the stream.  Local
+     * streams are read by the decoder directly.
+     */
+    private Drawable decodeBitmap(final InputStream source, final BitmapWorkerOptions options)
+            throws IOException {
+        try {
+            return ImagePipeline.getInstance().decode(new Callable<Drawable>() {
+                @Override
+                public Drawable call() throws IOException {
+                    return decodeStream(source, options);
+                }
+            });
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Decodes the bitmap from a seekable descriptor, closes the descriptor.
+     */
+    private Drawable decodeBitmap(final AssetFileDescriptor afd,
+            final BitmapWorkerOptions options) throws IOException {
+        try {
+            return ImagePipeline.getInstance().decode(new Callable<Drawable>() {
+                @Override
+                public Drawable call() throws IOException {
+                    return decodeDescriptor(afd, options);
+                }
+            });
+        } finally {
+            FileDescriptorDecoder.close(afd);
+        }
+    }
+
+    private Drawable decodeStream(InputStream source, BitmapWorkerOptions options)
             throws IOException {
-        CachedInputStream bufferedStream = null;
         BitmapFactory.Options bitmapOptions = null;
+        InputStream stream = null;
         try {
-            bufferedStream = new CachedInputStream(in);
-            // Let the bufferedStream be able to mark unlimited bytes up to full stream length.
-            // The value that BitmapFactory uses (1024) is too small for detecting bounds
-            bufferedStream.setOverrideMarkLimit(Integer.MAX_VALUE);
             bitmapOptions = new BitmapFactory.Options();
-            bitmapOptions.inJustDecodeBounds = true;
             if (options.getBitmapConfig() != null) {
                 bitmapOptions.inPreferredConfig = options.getBitmapConfig();
             }
             bitmapOptions.inTempStorage = ByteArrayPool.get16KBPool().allocateChunk();
-            bufferedStream.mark(Integer.MAX_VALUE);
-            BitmapFactory.decodeStream(bufferedStream, null, bitmapOptions);
-
-            mOriginalWidth = bitmapOptions.outWidth;
-            mOriginalHeight = bitmapOptions.outHeight;
-            int heightScale = 1;
-            int height = options.getHeight();
-            if (height > 0) {
-                heightScale = bitmapOptions.outHeight / height;
-            }
-
-            int widthScale = 1;
-            int width = options.getWidth();
-            if (width > 0) {
-                widthScale = bitmapOptions.outWidth / width;
+            // only the header is buffered for known formats.  A fetched body is already in
+            // memory, there are no reads left to cancel and ImageHeaderParser resets it in
+            // place instead of copying it
+            stream = ImageHeaderParser.decodeBounds(source instanceof ByteArrayInputStream
+                    ? source : new CancellableInputStream(source, mCancellationSignal),
+                    bitmapOptions, options.isAutoBitmapConfig());
+            final ScalePlanner plan = planDecode(bitmapOptions, options);
+
+            // sized for the largest output of the plan, the decoder never rejects it: a retry
+            // would need the stream reset past the header, which only the header is marked for
+            final Bitmap inBitmap = mRecycledBitmaps.getRecycledBitmap(plan.getMaxOutputWidth(),
+                    plan.getMaxOutputHeight(), bitmapOptions.inPreferredConfig);
+            setCancelDecodeListener(bitmapOptions);
+            bitmapOptions.inMutable = true;
+            bitmapOptions.inBitmap = inBitmap;
+            final Bitmap bitmap = BitmapFactory.decodeStream(stream, null, bitmapOptions);
+            throwIfCancelled(inBitmap, bitmap);
+            return wrapBitmap(inBitmap, plan.finish(bitmap), options);
+        } finally {
+            setCancelDecodeListener(null);
+            Log.w(TAG, "couldn't load bitmap, releasing resources");
+            if (bitmapOptions != null) {
+                ByteArrayPool.get16KBPool().releaseChunk(bitmapOptions.inTempStorage);
             }
-
-            int scale = heightScale > widthScale ? heightScale : widthScale;
-            if (scale <= 1) {
-                scale = 1;
-            } else {
-                int shift = 0;
-                do {
-                    scale >>= 1;
-                    shift++;
-                } while (scale != 0);
-                scale = 1 << (shift - 1);
+            if (stream != null) {
+                stream.close();
             }
+        }
+    }
 
-            if (DEBUG) {
-                Log.d("BitmapWorkerTask", "Source bitmap: (" + bitmapOptions.outWidth + "x"
-                        + bitmapOptions.outHeight + ").  Max size: (" + options.getWidth() + "x"
-                        + options.getHeight() + ").  Chosen scale: " + scale + " -> " + scale);
+    /**
+     * Decodes bounds and pixels directly from the file, without copying it.
+     */
+    private Drawable decodeDescriptor(AssetFileDescriptor afd, BitmapWorkerOptions options)
+            throws IOException {
+        BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
+        try {
+            if (options.getBitmapConfig() != null) {
+                bitmapOptions.inPreferredConfig = options.getBitmapConfig();
             }
+            bitmapOptions.inTempStorage = ByteArrayPool.get16KBPool().allocateChunk();
+            FileDescriptorDecoder.decodeBounds(afd, bitmapOptions, options.isAutoBitmapConfig());
+            throwIfCancelled(null, null);
+            final ScalePlanner plan = planDecode(bitmapOptions, options);
 
-            // Reset buffer to original position and disable the overrideMarkLimit
-            bufferedStream.reset();
-            bufferedStream.setOverrideMarkLimit(0);
             Bitmap bitmap;
+            final Bitmap inBitmap = mRecycledBitmaps.getRecycledBitmap(plan.getMaxOutputWidth(),
+                    plan.getMaxOutputHeight(), bitmapOptions.inPreferredConfig);
+            bitmapOptions.inMutable = true;
+            bitmapOptions.inBitmap = inBitmap;
+            setCancelDecodeListener(bitmapOptions);
             try {
-                bitmapOptions.inJustDecodeBounds = false;
-                bitmapOptions.inSampleSize = scale;
-                bitmapOptions.inMutable = true;
-                bitmapOptions.inBitmap = mRecycledBitmaps.getRecycledBitmap(
-                        mOriginalWidth / scale, mOriginalHeight / scale);
-                bitmap = BitmapFactory.decodeStream(bufferedStream, null, bitmapOptions);
+                bitmap = FileDescriptorDecoder.decode(afd, bitmapOptions);
             } catch (RuntimeException ex) {
-                Log.e(TAG, "RuntimeException" + ex + ", trying decodeStream again");
-                bufferedStream.reset();
-                bufferedStream.setOverrideMarkLimit(0);
+                Log.e(TAG, "RuntimeException" + ex + ", trying decodeFileDescriptor again");
                 bitmapOptions.inBitmap = null;
-                bitmap = BitmapFactory.decodeStream(bufferedStream, null, bitmapOptions);
-            }
-            if (bitmap == null) {
-                Log.d(TAG, "bitmap was null");
-                return null;
+                bitmap = FileDescriptorDecoder.decode(afd, bitmapOptions);
             }
-            RefcountObject<Bitmap> object = new RefcountObject<>(bitmap);
-            object.addRef();
-            object.setRefcountListener(mRefcountListener);
-            RefcountBitmapDrawable d = new RefcountBitmapDrawable(
-                    options.getContext().getResources(), object);
-            return d;
+            throwIfCancelled(inBitmap, bitmap);
+            return wrapBitmap(inBitmap, plan.finish(bitmap), options);
         } finally {
-            Log.w(TAG, "couldn't load bitmap, releasing resources");
-            if (bitmapOptions != null) {
-                ByteArrayPool.get16KBPool().releaseChunk(bitmapOptions.inTempStorage);
-            }
-            if (bufferedStream != null) {
-                bufferedStream.close();
-            }
+            setCancelDecodeListener(null);
+            ByteArrayPool.get16KBPool().releaseChunk(bitmapOptions.inTempStorage);
         }
     }
 
-    private Drawable getBitmapFromHttp(BitmapWorkerOptions options) throws IOException {
-        URL url = new URL(options.getResourceUri().toString());
-        if (DEBUG) {
-            Log.d(TAG, "Loading " + url);
+    /**
+     * The decoder returns a partial or null bitmap when it is cancelled, drop it.  The
+     * bitmaps go back to the pool, their content is overwritten by the next decode.
+     */
+    private void throwIfCancelled(Bitmap inBitmap, Bitmap bitmap)
+            throws DecodeCancelledException {
+        if (!mCancellationSignal.isCanceled()) {
+            return;
+        }
+        if (inBitmap != null) {
+            mRecycledBitmaps.onDecoded(inBitmap, null);
+        }
+        if (bitmap != null && bitmap != inBitmap) {
+            mRecycledBitmaps.addRecycledBitmap(bitmap);
+        }
+        throw new DecodeCancelledException();
+    }
+
+    /**
+     * Plans the decode for the bounds in bitmapOptions, the bitmap is decoded at the output
+     * size without a separate scaling pass.
+     */
+    private ScalePlanner planDecode(BitmapFactory.Options bitmapOptions,
+            BitmapWorkerOptions options) {
+        mOriginalWidth = bitmapOptions.outWidth;
+        mOriginalHeight = bitmapOptions.outHeight;
+        return ScalePlanner.plan(bitmapOptions, options.getWidth(), options.getHeight());
+    }
+
+    private Drawable wrapBitmap(Bitmap inBitmap, Bitmap bitmap, BitmapWorkerOptions options) {
+        // counts allocations avoided, an unused inBitmap goes back to the pool
+        mRecycledBitmaps.onDecoded(inBitmap, bitmap);
+        if (bitmap == null) {
+            Log.d(TAG, "bitmap was null");
+            return null;
         }
+        RefcountObject<Bitmap> object = new RefcountObject<>(bitmap);
+        object.addRef();
+        object.setRefcountListener(mRefcountListener);
+        RefcountBitmapDrawable d = new RefcountBitmapDrawable(
+                options.getContext().getResources(), object);
+        return d;
+    }
+
+    private Drawable decodeSnapshot(DiskBitmapCache.Snapshot snapshot,
+            BitmapWorkerOptions options) throws IOException {
+        Drawable d = decodeBitmap(snapshot.getInputStream(), options);
+        if (d != null) {
+            // the stored bitmap may already be a scaled down copy of the source
+            mOriginalWidth = snapshot.getOriginalWidth();
+            mOriginalHeight = snapshot.getOriginalHeight();
+        }
+        return d;
+    }
+
+    private void addBitmapToDiskCache(BitmapWorkerOptions options, Drawable d,
+            HttpImageFetcher.Validators validators) {
+        if (d instanceof BitmapDrawable) {
+            DiskBitmapCache.getInstance(options.getContext()).put(options,
+                    ((BitmapDrawable) d).getBitmap(), mOriginalWidth, mOriginalHeight,
+                    validators);
+        }
+    }
+
+    private Drawable getBitmapFromHttp(BitmapWorkerOptions options) throws IOException {
+        final RemoteImageFetch fetch = takeRemoteFetch(options);
         try {
-            // TODO use volley for better disk cache
-            URLConnection connection = url.openConnection();
-            connection.setConnectTimeout(SOCKET_TIMEOUT);
-            connection.setReadTimeout(READ_TIMEOUT);
-            InputStream in = connection.getInputStream();
-            return decodeBitmap(in, options);
+            fetch.await();
+            final DiskBitmapCache.Snapshot snapshot = fetch.takeSnapshot();
+            if (snapshot != null) {
+                return decodeSnapshot(snapshot, options);
+            }
+            Drawable d = decodeBitmap(fetch.takeBody(), options);
+            addBitmapToDiskCache(options, d, fetch.getValidators());
+            return d;
         } catch (SocketTimeoutException e) {
-            Log.e(TAG, "loading " + url + " timed out");
+            Log.e(TAG, "loading " + options.getResourceUri() + " timed out");
+        } finally {
+            fetch.release();
         }
         return null;
     }
@@ -288,19 +434,28 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
             throws IOException {
         Uri resourceUri = options.getResourceUri();
         if (resourceUri != null) {
+            // not disk cached, the provider is local and its data may change behind the same
+            // uri
+            final Drawable d;
             try {
-                InputStream bitmapStream =
-                        options.getContext().getContentResolver().openInputStream(resourceUri);
-
-                if (bitmapStream != null) {
-                    return decodeBitmap(bitmapStream, options);
+                AssetFileDescriptor afd = options.getContext().getContentResolver()
+                        .openAssetFileDescriptor(resourceUri, "r");
+
+                if (afd != null) {
+                    if (FileDescriptorDecoder.isSeekable(afd)) {
+                        d = decodeBitmap(afd, options);
+                    } else {
+                        // pipe from the provider
+                        d = decodeBitmap(afd.createInputStream(), options);
+                    }
+                    return d;
                 } else {
-                    Log.w(TAG, "Content provider returned a null InputStream when trying to " +
+                    Log.w(TAG, "Content provider returned a null descriptor when trying to " +
                             "open resource.");
                     return null;
                 }
             } catch (FileNotFoundException e) {
-                Log.e(TAG, "FileNotFoundException during openInputStream for uri: "
+                Log.e(TAG, "FileNotFoundException during openAssetFileDescriptor for uri: "
                         + resourceUri.toString());
                 return null;
             }
@@ -315,15 +470,17 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
      * caching Bitmap in Resources.  So that caller can maintain a different caching
      * storage with less memory used.
      * @return  either {@link Drawable} for xml and ColorDrawable <br>
-     *          or {@link InputStream} for Bitmap resource
+     *          or {@link AssetFileDescriptor} for uncompressed Bitmap resource <br>
+     *          or {@link InputStream} for other Bitmap resource
      */
     private static Object loadDrawable(Context context, ShortcutIconResource r)
             throws NameNotFoundException {
-        Resources resources = context.getPackageManager().getResourcesForApplication(r.packageName);
+        final ResourceCache resourceCache = ResourceCache.getInstance(context);
+        Resources resources = resourceCache.getResources(r.packageName);
         if (resources == null) {
             return null;
         }
-        final int id = resources.getIdentifier(r.resourceName, null, null);
+        final int id = resourceCache.getIdentifier(r.packageName, resources, r.resourceName);
         if (id == 0) {
             Log.e(TAG, "Couldn't get resource " + r.resourceName + " in resources of "
                     + r.packageName);
@@ -336,49 +493,32 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
                 && value.type <= TypedValue.TYPE_LAST_COLOR_INT)) {
             return resources.getDrawable(id);
         }
+        AssetFileDescriptor afd = FileDescriptorDecoder.openResource(resources, id);
+        if (afd != null) {
+            return afd;
+        }
         return resources.openRawResource(id, value);
     }
 
     public static Drawable getDrawable(Context context, ShortcutIconResource iconResource)
             throws NameNotFoundException {
-        Resources resources =
-                context.getPackageManager().getResourcesForApplication(iconResource.packageName);
-        int id = resources.getIdentifier(iconResource.resourceName, null, null);
+        final ResourceCache resourceCache = ResourceCache.getInstance(context);
+        Resources resources = resourceCache.getResources(iconResource.packageName);
+        int id = resourceCache.getIdentifier(iconResource.packageName, resources,
+                iconResource.resourceName);
         if (id == 0) {
             throw new NameNotFoundException();
         }
         return resources.getDrawable(id);
     }
 
+    /**
+     * Loads the picture of the account on this thread, the picture uri is resolved once and
+     * kept in {@link AccountImageUriCache}.
+     */
     private Drawable getAccountImage(BitmapWorkerOptions options) {
-        String accountName = UriUtils.getAccountName(options.getResourceUri());
-        Context context = options.getContext();
-
-        if (accountName != null && context != null) {
-            Account thisAccount = null;
-            for (Account account : AccountManager.get(context).
-                    getAccountsByType(GOOGLE_ACCOUNT_TYPE)) {
-                if (account.name.equals(accountName)) {
-                    thisAccount = account;
-                    break;
-                }
-            }
-            if (thisAccount != null) {
-                String picUriString = AccountImageHelper.getAccountPictureUri(context, thisAccount);
-                if (picUriString != null) {
-                    BitmapWorkerOptions.Builder optionBuilder =
-                            new BitmapWorkerOptions.Builder(context)
-                            .width(options.getWidth())
-                                    .height(options.getHeight())
-                                    .cacheFlag(options.getCacheFlag())
-                                    .bitmapConfig(options.getBitmapConfig())
-                                    .resource(Uri.parse(picUriString));
-                    return DrawableDownloader.getInstance(context)
-                            .loadBitmapBlocking(optionBuilder.build());
-                }
-                return null;
-            }
-        }
-        return null;
+        BitmapWorkerOptions pictureOptions =
+                AccountImageUriCache.getInstance().resolvePictureOptions(options);
+        return pictureOptions == null ? null : retrieveDrawable(pictureOptions);
     }
 }
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.widget;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+
+/**
+ * HTTP layer of the image loaders.
+ * <p>
+ * Connections are kept alive and reused: bodies are read to the end by the fetch stage of
+ * {@link ImagePipeline} and error bodies are drained, so the connection goes back to the pool
+ * of {@link HttpURLConnection}.  An image stored in {@link DiskBitmapCache} keeps the ETag and
+ * Last-Modified of its response, once the entry is stale the request is conditional and a
+ * 304 is served from disk.  The number of connections to one host is limited, and the
+ * latency of requests is counted.
+ */
+final class HttpImageFetcher {
+
+    private static final String TAG = "HttpImageFetcher";
+
+    private static final boolean DEBUG = false;
+
+    private static final int SOCKET_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 10000;
+
+    // keep some I/O threads for other hosts
+    private static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+    // freshness of a response without Cache-Control max-age or Expires
+    private static final long DEFAULT_FRESHNESS_MS = 24 * 60 * 60 * 1000L;
+
+    private static final HttpImageFetcher sInstance = new HttpImageFetcher();
+
+    /**
+     * Validators and freshness of a stored response.
+     */
+    static final class Validators {
+        /** entries not loaded from http never expire */
+        static final Validators NONE = new Validators(null, 0, Long.MAX_VALUE);
+
+        final String mETag;
+        // 0 if unknown
+        final long mLastModified;
+        // wall clock time the response becomes stale
+        final long mExpires;
+
+        Validators(String eTag, long lastModified, long expires) {
+            mETag = eTag;
+            mLastModified = lastModified;
+            mExpires = expires;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < mExpires;
+        }
+
+        boolean canRevalidate() {
+            return mETag != null || mLastModified != 0;
+        }
+    }
+
+    /**
+     * Response of {@link #fetch}, must be closed.  Holds a connection slot of the host until
+     * closed.
+     */
+    final class Response {
+        private final HttpURLConnection mConnection;
+        private final Semaphore mHostSlots;
+        private final int mCode;
+        private final Validators mValidators;
+        private boolean mClosed;
+
+        private Response(HttpURLConnection connection, Semaphore hostSlots, int code,
+                Validators validators) {
+            mConnection = connection;
+            mHostSlots = hostSlots;
+            mCode = code;
+            mValidators = validators;
+        }
+
+        /**
+         * @return true if the stored entry is still valid, the response has no body
+         */
+        boolean isNotModified() {
+            return mCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        /**
+         * @return validators of the response, or of the stored entry refreshed by a 304
+         */
+        Validators getValidators() {
+            return mValidators;
+        }
+
+        /**
+         * @return length of the body, -1 if unknown
+         */
+        int getContentLength() {
+            return mConnection.getContentLength();
+        }
+
+        /**
+         * @return body of a 200 response, closing it closes the response
+         */
+        InputStream getInputStream() throws IOException {
+            return new FilterInputStream(mConnection.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        Response.this.close();
+                    }
+                }
+            };
+        }
+
+        void close() {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+            }
+            if (isNotModified()) {
+                // no body, closing the empty stream returns the connection to the pool
+                try {
+                    mConnection.getInputStream().close();
+                } catch (IOException e) {
+                    // not reusable, dropped by the pool
+                }
+            }
+            mHostSlots.release();
+        }
+    }
+
+    private final HashMap<String, Semaphore> mHostSlots = new HashMap<>();
+
+    private int mRequestCount;
+    private int mNotModifiedCount;
+    private int mErrorCount;
+    private long mLatencyMs;
+    private long mMaxLatencyMs;
+    private final ImageMetrics.Histogram mLatency = new ImageMetrics.Histogram("http latency");
+
+    static HttpImageFetcher getInstance() {
+        return sInstance;
+    }
+
+    private HttpImageFetcher() {
+    }
+
+    private synchronized Semaphore getHostSlots(String host) {
+        Semaphore slots = mHostSlots.get(host);
+        if (slots == null) {
+            slots = new Semaphore(MAX_CONNECTIONS_PER_HOST);
+            mHostSlots.put(host, slots);
+        }
+        return slots;
+    }
+
+    /**
+     * Requests the url, conditionally if stored has validators.
+     * @param stored validators of the entry in disk cache, null if there is none
+     * @return a 200 or 304 response
+     * @throws IOException for other responses and network errors
+     */
+    Response fetch(URL url, Validators stored) throws IOException {
+        final Semaphore hostSlots = getHostSlots(url.getHost());
+        try {
+            hostSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("waiting for " + url.getHost());
+        }
+        boolean success = false;
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            URLConnection urlConnection = url.openConnection();
+            if (!(urlConnection instanceof HttpURLConnection)) {
+                throw new IOException("not http: " + url);
+            }
+            final HttpURLConnection connection = (HttpURLConnection) urlConnection;
+            connection.setConnectTimeout(SOCKET_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            // the disk cache is the cache of decoded images
+            connection.setUseCaches(false);
+            if (stored != null && stored.canRevalidate()) {
+                if (stored.mETag != null) {
+                    connection.setRequestProperty("If-None-Match", stored.mETag);
+                }
+                if (stored.mLastModified != 0) {
+                    connection.setIfModifiedSince(stored.mLastModified);
+                }
+            }
+            final int code = connection.getResponseCode();
+            final long latency = SystemClock.elapsedRealtime() - start;
+            mLatency.record(latency);
+            if (DEBUG) {
+                Log.d(TAG, code + " " + url + " in " + latency + "ms");
+            }
+            final Response response;
+            if (code == HttpURLConnection.HTTP_OK) {
+                response = new Response(connection, hostSlots, code, getValidators(connection));
+            } else if (code == HttpURLConnection.HTTP_NOT_MODIFIED && stored != null) {
+                final Validators validators = getValidators(connection);
+                // a 304 may leave out the validators, keep the stored ones
+                response = new Response(connection, hostSlots, code, new Validators(
+                        validators.mETag != null ? validators.mETag : stored.mETag,
+                        validators.mLastModified != 0 ? validators.mLastModified
+                                : stored.mLastModified,
+                        validators.mExpires));
+            } else {
+                drain(connection);
+                throw new IOException("unexpected response " + code + " for " + url);
+            }
+            synchronized (this) {
+                mRequestCount++;
+                if (response.isNotModified()) {
+                    mNotModifiedCount++;
+                }
+                mLatencyMs += latency;
+                mMaxLatencyMs = Math.max(mMaxLatencyMs, latency);
+            }
+            success = true;
+            return response;
+        } finally {
+            if (!success) {
+                synchronized (this) {
+                    mErrorCount++;
+                }
+                hostSlots.release();
+            }
+        }
+    }
+
+    private static Validators getValidators(HttpURLConnection connection) {
+        final long now = System.currentTimeMillis();
+        long expires = now + DEFAULT_FRESHNESS_MS;
+        final String cacheControl = connection.getHeaderField("Cache-Control");
+        final long maxAge = parseMaxAge(cacheControl);
+        if (maxAge >= 0) {
+            expires = now + maxAge * 1000;
+        } else if (connection.getExpiration() != 0) {
+            expires = connection.getExpiration();
+        }
+        return new Validators(connection.getHeaderField("ETag"), connection.getLastModified(),
+                expires);
+    }
+
+    /**
+     * @return max-age in seconds, 0 for no-cache, -1 if not present
+     */
+    private static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim();
+            if (directive.equalsIgnoreCase("no-cache") || directive.equalsIgnoreCase("no-store")) {
+                return 0;
+            } else if (directive.regionMatches(true, 0, "max-age=", 0, 8)) {
+                try {
+                    return Math.max(0, Long.parseLong(directive.substring(8).trim()));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * read the error body to the end, so the connection can be reused
+     */
+    private static void drain(HttpURLConnection connection) {
+        InputStream in = connection.getErrorStream();
+        if (in == null) {
+            return;
+        }
+        byte[] buffer = new byte[1024];
+        try {
+            while (in.read(buffer) != -1) {
+            }
+        } catch (IOException e) {
+            // not reusable, dropped by the pool
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return number of responses served from disk cache after a 304
+     */
+    synchronized int getNotModifiedCount() {
+        return mNotModifiedCount;
+    }
+
+    synchronized int getErrorCount() {
+        return mErrorCount;
+    }
+
+    /**
+     * @return average time until the response headers arrive
+     */
+    synchronized long getAverageLatencyMs() {
+        return mRequestCount == 0 ? 0 : mLatencyMs / mRequestCount;
+    }
+
+    synchronized long getMaxLatencyMs() {
+        return mMaxLatencyMs;
+    }
+
+    /**
+     * @return distribution of the time until the response headers arrive
+     */
+    ImageMetrics.Histogram getLatency() {
+        return mLatency;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "HttpImageFetcher[requests=%d,notModified=%d,errors=%d,"
+                + "averageLatencyMs=%d,maxLatencyMs=%d]", mRequestCount, mNotModifiedCount,
+                mErrorCount, getAverageLatencyMs(), mMaxLatencyMs);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.widget;
+
+import android.content.ContentResolver;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rasterizes drawable resources that are not bitmaps (xml drawables, colors) for
+ * {@link BitmapWorkerTask}, and keeps the results in the memory cache of {@link ImageEngine}
+ * under {@link ImageEngine#NAMESPACE_ICON}, within the budget shared with the downloaders.
+ * <p>
+ * Icons are keyed by package, resource id, density of the package resources and requested
+ * size, which together decide the rasterized bitmap, so binding the same icon again does no
+ * inflation or drawing.  The bitmap drawn into comes from {@link RecycleBitmapPool} when one
+ * fits.
+ */
+final class IconRasterizer {
+
+    /**
+     * rasterized icon saved in the memory cache of {@link ImageEngine}
+     */
+    private static class IconItem implements ImageEngine.CacheEntry {
+        final Bitmap mBitmap;
+
+        IconItem(Bitmap bitmap) {
+            mBitmap = bitmap;
+        }
+
+        @Override
+        public int getByteCount() {
+            return mBitmap.getByteCount();
+        }
+
+        @Override
+        public int getSavedByteCount() {
+            return 0;
+        }
+
+        @Override
+        public void onEvicted() {
+            // icons may still be shown by views, leave them to the GC
+        }
+    }
+
+    private final LongLruCache<ImageEngine.CacheEntry> mMemoryCache;
+    private final RecycleBitmapPool mRecycledBitmaps;
+
+    // one canvas per loading thread, pointed at each target bitmap in turn
+    private final ThreadLocal<Canvas> mCanvas = new ThreadLocal<Canvas>() {
+        @Override
+        protected Canvas initialValue() {
+            return new Canvas();
+        }
+    };
+
+    private final AtomicInteger mRasterizeCount = new AtomicInteger();
+
+    IconRasterizer(LongLruCache<ImageEngine.CacheEntry> memoryCache,
+            RecycleBitmapPool recycledBitmaps) {
+        mMemoryCache = memoryCache;
+        mRecycledBitmaps = recycledBitmaps;
+    }
+
+    /**
+     * Key of the icon, the base key is the android.resource uri of the id so the icon is
+     * dropped with other resource images by {@link ImageEngine#invalidateCachedResources()}.
+     */
+    private static long getKey(Resources resources, String packageName, int id,
+            BitmapWorkerOptions options) {
+        final String baseKey = ContentResolver.SCHEME_ANDROID_RESOURCE + "://" + packageName
+                + "/" + id + "@" + resources.getDisplayMetrics().densityDpi;
+        return ImageKeys.pack(ImageEngine.NAMESPACE_ICON, ImageKeys.intern(baseKey), 0,
+                options.getWidth(), options.getHeight());
+    }
+
+    /**
+     * @return the drawable resource rasterized for the requested size of options, from the
+     * memory cache if it was drawn before
+     */
+    Bitmap getIcon(Resources resources, String packageName, int id,
+            BitmapWorkerOptions options) {
+        final long key = getKey(resources, packageName, id, options);
+        final IconItem item = (IconItem) mMemoryCache.get(key);
+        ImageMetrics.getInstance().recordMemoryLookup(ImageEngine.NAMESPACE_ICON, options,
+                item != null);
+        if (item != null) {
+            return item.mBitmap;
+        }
+        final Bitmap bitmap = rasterize(resources.getDrawable(id), options);
+        mMemoryCache.put(key, new IconItem(bitmap));
+        return bitmap;
+    }
+
+    private Bitmap rasterize(Drawable drawable, BitmapWorkerOptions options) {
+        // Some drawables have an intrinsic width and height of -1. In that case
+        // size it to our output.
+        int width = drawable.getIntrinsicWidth();
+        if (width <= 0) {
+            width = options.getWidth();
+        }
+        int height = drawable.getIntrinsicHeight();
+        if (height <= 0) {
+            height = options.getHeight();
+        }
+        Bitmap bitmap = mRecycledBitmaps.getRecycledBitmap(width, height);
+        if (bitmap != null) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+        } else {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        final Canvas canvas = mCanvas.get();
+        canvas.setBitmap(bitmap);
+        try {
+            drawable.setBounds(0, 0, width, height);
+            drawable.draw(canvas);
+        } finally {
+            // don't keep the bitmap alive through the canvas
+            canvas.setBitmap(null);
+        }
+        mRasterizeCount.incrementAndGet();
+        return bitmap;
+    }
+
+    /**
+     * @return number of icons drawn, lookups are counted by {@link ImageMetrics}
+     */
+    int getRasterizeCount() {
+        return mRasterizeCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "IconRasterizer[rasterized=" + getRasterizeCount() + "]";
+    }
+}
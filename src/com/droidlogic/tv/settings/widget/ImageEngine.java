@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.widget;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.droidlogic.tv.settings.util.AccountImageUriCache;
+import com.droidlogic.tv.settings.util.ByteArrayPool;
+import com.droidlogic.tv.settings.util.ResourceCache;
+
+import java.io.PrintWriter;
+
+/**
+ * Image engine shared by {@link BitmapDownloader} and {@link DrawableDownloader}.
+ * <p>
+ * Both downloaders are thin front-ends over one memory cache with a single byte budget and
+ * one set of worker threads, so the application pins at most 1/4 of its memory class (capped
+ * to {@link #CACHE_HARD_LIMIT}) no matter which API the views use.  Front-ends keep their
+ * entries apart with a namespace in the packed key, see {@link ImageKeys}.
+ * <p>
+ * Memory trims shrink the cache according to the level instead of emptying it, see
+ * {@link #trimMemory(int)}.
+ */
+final class ImageEngine {
+
+    private static final String TAG = "ImageEngine";
+
+    private static final boolean DEBUG = false;
+
+    // 1/4 of max memory is used for bitmap mem cache
+    private static final int MEM_TO_CACHE = 4;
+
+    // hard limit for bitmap mem cache in MB
+    private static final int CACHE_HARD_LIMIT = 32;
+
+    // 1/8 of mem cache budget is used for bitmaps kept for reuse as inBitmap
+    private static final int CACHE_TO_RECYCLE_POOL = 8;
+
+    // I/O threads mostly wait on network, decoding runs in ImagePipeline sized by cores
+    private static final int CORE_POOL_SIZE = 6;
+
+    // thread pool for loading non android-resources such as http,  content
+    private static final PriorityScheduler BITMAP_DOWNLOADER_SCHEDULER =
+            new PriorityScheduler("ImageEngine", CORE_POOL_SIZE);
+
+    private static final int CORE_RESOURCE_POOL_SIZE = 2;
+
+    // thread pool for loading android resources,  we use separate thread pool so
+    // that network loading will not block local android icons
+    private static final PriorityScheduler BITMAP_RESOURCE_DOWNLOADER_SCHEDULER =
+            new PriorityScheduler("ImageEngine resource", CORE_RESOURCE_POOL_SIZE);
+
+    // in refcount tracking mode, bitmaps still referenced this long after their eviction are
+    // reported every REFCOUNT_REPORT_INTERVAL_MS
+    static final long EVICTED_ALIVE_REPORT_MS = 10000;
+    private static final long REFCOUNT_REPORT_INTERVAL_MS = 60000;
+
+    /** namespace of {@link BitmapDownloader} entries in the memory cache */
+    static final int NAMESPACE_BITMAP = 1;
+    /** namespace of {@link DrawableDownloader} entries in the memory cache */
+    static final int NAMESPACE_DRAWABLE = 2;
+    /** namespace of icons rasterized by {@link IconRasterizer} */
+    static final int NAMESPACE_ICON = 3;
+
+    /**
+     * Item saved in the shared memory cache by a front-end.
+     */
+    interface CacheEntry {
+        /**
+         * @return bytes held by the entry, must not change while the entry is in the cache
+         */
+        int getByteCount();
+
+        /**
+         * @return bytes not allocated because bitmaps of the entry are RGB_565 instead of
+         * ARGB_8888
+         */
+        int getSavedByteCount();
+
+        /**
+         * called when the entry is evicted to make room or by a memory trim
+         */
+        void onEvicted();
+    }
+
+    private static ImageEngine sImageEngine;
+
+    private static final Object sImageEngineLock = new Object();
+
+    private final Context mContext;
+    private final LongLruCache<CacheEntry> mMemoryCache;
+    private final RecycleBitmapPool mRecycledBitmaps;
+    private final IconRasterizer mIconRasterizer;
+    private final WarmStartSnapshot mWarmStartSnapshot;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Configuration mConfiguration;
+
+    private final Runnable mRefcountReport = new Runnable() {
+        @Override
+        public void run() {
+            if (RefcountObject.isTrackingEnabled()) {
+                RefcountObject.reportEvictedAlive(EVICTED_ALIVE_REPORT_MS);
+                mMainHandler.postDelayed(this, REFCOUNT_REPORT_INTERVAL_MS);
+            }
+        }
+    };
+
+    private int mTrimCount;
+    private int mLastTrimLevel = -1;
+    private long mLastTrimFreedBytes;
+    private long mTrimFreedBytes;
+
+    /**
+     * get the singleton ImageEngine for the application
+     */
+    static ImageEngine getInstance(Context context) {
+        if (sImageEngine == null) {
+            synchronized (sImageEngineLock) {
+                if (sImageEngine == null) {
+                    sImageEngine = new ImageEngine(context.getApplicationContext());
+                }
+            }
+        }
+        return sImageEngine;
+    }
+
+    private ImageEngine(Context context) {
+        mContext = context;
+        int memClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
+                .getMemoryClass();
+        memClass = memClass / MEM_TO_CACHE;
+        if (memClass > CACHE_HARD_LIMIT) {
+            memClass = CACHE_HARD_LIMIT;
+        }
+        int cacheSize = 1024 * 1024 * memClass;
+        mMemoryCache = new LongLruCache<CacheEntry>(cacheSize) {
+            @Override
+            protected int sizeOf(long key, CacheEntry entry) {
+                return entry.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(
+                    boolean evicted, long key, CacheEntry oldValue, CacheEntry newValue) {
+                if (evicted) {
+                    oldValue.onEvicted();
+                }
+            }
+        };
+        mRecycledBitmaps = new RecycleBitmapPool(cacheSize / CACHE_TO_RECYCLE_POOL);
+        mIconRasterizer = new IconRasterizer(mMemoryCache, mRecycledBitmaps);
+        mWarmStartSnapshot = new WarmStartSnapshot(context, cacheSize);
+        mConfiguration = new Configuration(context.getResources().getConfiguration());
+
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                int changes = mConfiguration.updateFrom(newConfig);
+                if (Configuration.needNewResources(changes, ActivityInfo.CONFIG_LAYOUT_DIRECTION)) {
+                    invalidateCachedResources();
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+        });
+
+        // "adb shell setprop log.tag.RefcountObject DEBUG" before the process starts
+        if (Log.isLoggable("RefcountObject", Log.DEBUG)) {
+            RefcountObject.setTrackingEnabled(true);
+            mMainHandler.postDelayed(mRefcountReport, REFCOUNT_REPORT_INTERVAL_MS);
+        }
+    }
+
+    Context getContext() {
+        return mContext;
+    }
+
+    LongLruCache<CacheEntry> getMemoryCache() {
+        return mMemoryCache;
+    }
+
+    RecycleBitmapPool getRecycledBitmaps() {
+        return mRecycledBitmaps;
+    }
+
+    IconRasterizer getIconRasterizer() {
+        return mIconRasterizer;
+    }
+
+    /**
+     * @return requests of the front-ends, replayed at the next start
+     */
+    WarmStartSnapshot getWarmStartSnapshot() {
+        return mWarmStartSnapshot;
+    }
+
+    /**
+     * @return handler of UI thread, used for delivering results
+     */
+    Handler getMainHandler() {
+        return mMainHandler;
+    }
+
+    /**
+     * @return scheduler for loading the image described by options
+     */
+    PriorityScheduler getScheduler(BitmapWorkerOptions options) {
+        return options.isFromResource() ? BITMAP_RESOURCE_DOWNLOADER_SCHEDULER
+                : BITMAP_DOWNLOADER_SCHEDULER;
+    }
+
+    /**
+     * @return a ticket for executing the load described by options at its priority
+     */
+    PriorityScheduler.Ticket newTicket(BitmapWorkerOptions options) {
+        return getScheduler(options).newTicket(options.getPriority());
+    }
+
+    /**
+     * @return fraction of the memory cache budget kept for a trim level
+     */
+    static float getTrimFraction(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            // next in line to be killed
+            return 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // keep warm entries, settings is likely reopened soon
+            return 1f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 0.5f;
+        }
+        return 1f;
+    }
+
+    /**
+     * Trims the memory cache to {@link #getTrimFraction(int)} of its budget, and the pools of
+     * bitmaps and byte arrays for the level.  Evicted bitmaps may land in the bitmap pool, it
+     * is trimmed after the cache.
+     * @return bytes freed by the cache and the pools
+     */
+    long trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // the images of the last screen are still in the cache
+            mWarmStartSnapshot.save();
+        }
+        final float fraction = getTrimFraction(level);
+        final int cacheBytes = mMemoryCache.size();
+        if (fraction < 1f) {
+            trimTo(fraction);
+        }
+        final long cacheFreed = cacheBytes - mMemoryCache.size();
+        final long poolFreed = mRecycledBitmaps.trimMemory(level);
+        long bufferFreed = 0;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            bufferFreed = ByteArrayPool.clearPools();
+        }
+        final long freed = cacheFreed + poolFreed + bufferFreed;
+        synchronized (this) {
+            mTrimCount++;
+            mLastTrimLevel = level;
+            mLastTrimFreedBytes = freed;
+            mTrimFreedBytes += freed;
+        }
+        Log.i(TAG, "trim level " + level + " freed " + freed + " bytes (cache " + cacheFreed
+                + ", bitmap pool " + poolFreed + ", byte pool " + bufferFreed + ")");
+        return freed;
+    }
+
+    synchronized int getTrimCount() {
+        return mTrimCount;
+    }
+
+    /**
+     * @return level of the last memory trim, -1 if there was none
+     */
+    synchronized int getLastTrimLevel() {
+        return mLastTrimLevel;
+    }
+
+    synchronized long getLastTrimFreedBytes() {
+        return mLastTrimFreedBytes;
+    }
+
+    /**
+     * @return bytes freed by all memory trims
+     */
+    synchronized long getTrimFreedBytes() {
+        return mTrimFreedBytes;
+    }
+
+    /**
+     * trim memory cache to 0~1 * maxSize
+     */
+    void trimTo(float amount) {
+        if (amount == 0f) {
+            mMemoryCache.evictAll();
+        } else {
+            mMemoryCache.trimToSize((int) (amount * mMemoryCache.maxSize()));
+        }
+    }
+
+    /**
+     * @return bytes saved by {@link BitmapWorkerOptions#isAutoBitmapConfig()} loads that are
+     * currently in the memory cache of the front-end
+     * @param namespace {@link #NAMESPACE_BITMAP} or {@link #NAMESPACE_DRAWABLE}
+     */
+    long getAutoConfigSavedBytes(int namespace) {
+        long saved = 0;
+        for (long key : mMemoryCache.keys()) {
+            if (ImageKeys.getNamespace(key) != namespace
+                    || ImageKeys.getConfigCode(key) != ImageKeys.CONFIG_CODE_AUTO) {
+                continue;
+            }
+            CacheEntry entry = mMemoryCache.peek(key);
+            if (entry != null) {
+                saved += entry.getSavedByteCount();
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * Prints the state of the shared cache and pools, and the counters of
+     * {@link ImageMetrics}.
+     */
+    void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println(TAG);
+        final String innerPrefix = prefix + "  ";
+        writer.print(innerPrefix);
+        writer.print("memory cache: ");
+        writer.println(mMemoryCache);
+        synchronized (this) {
+            writer.print(innerPrefix);
+            writer.print("trims: ");
+            writer.print(mTrimCount);
+            writer.print(", last level: ");
+            writer.print(mLastTrimLevel);
+            writer.print(", last freed: ");
+            writer.print(mLastTrimFreedBytes);
+            writer.print(", total freed: ");
+            writer.println(mTrimFreedBytes);
+        }
+        writer.print(innerPrefix);
+        writer.println(mIconRasterizer);
+        ImageMetrics.getInstance().dumpMemoryLookups(innerPrefix + "icon ", writer,
+                NAMESPACE_ICON);
+        writer.print(innerPrefix);
+        writer.println(mWarmStartSnapshot);
+        writer.print(innerPrefix);
+        writer.println(mRecycledBitmaps);
+        writer.print(innerPrefix);
+        writer.println(ByteArrayPool.get4KBPool());
+        writer.print(innerPrefix);
+        writer.println(ByteArrayPool.get16KBPool());
+        writer.print(innerPrefix);
+        writer.println(DiskBitmapCache.getInstance(mContext));
+        writer.print(innerPrefix);
+        writer.println(ResourceCache.getInstance(mContext));
+        writer.print(innerPrefix);
+        writer.println(AccountImageUriCache.getInstance());
+        ImageMetrics.getInstance().dump(innerPrefix, writer);
+        RefcountObject.dumpTracked(innerPrefix, writer, EVICTED_ALIVE_REPORT_MS);
+    }
+
+    /**
+     * remove images loaded from android resources of all front-ends,  they need to be loaded
+     * again when the resources configuration changes
+     */
+    void invalidateCachedResources() {
+        for (long key : mMemoryCache.keys()) {
+            String uri = ImageKeys.getBaseKey(ImageKeys.getBaseId(key));
+            if (uri != null && uri.startsWith(ContentResolver.SCHEME_ANDROID_RESOURCE)) {
+                if (DEBUG) {
+                    Log.d(TAG, "remove cached image: " + uri);
+                }
+                CacheEntry entry = mMemoryCache.remove(key);
+                if (entry != null) {
+                    entry.onEvicted();
+                }
+            }
+        }
+    }
+}
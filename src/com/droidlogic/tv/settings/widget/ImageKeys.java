@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.widget;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Allocation free keys for the image caches.
+ * <p>
+ * The string {@link BitmapWorkerOptions#getCacheKey()} is interned once to an int id, which is
+ * then packed together with the bitmap config (see {@link #getConfigCode}), the namespace of
+ * the owner (see {@link ImageEngine#NAMESPACE_BITMAP}) and a width and height (either a size
+ * class index or exact pixels) into a long:
+ * <pre>
+ *  63          32 31      28 27      24 23          12 11           0
+ * |    base id   |  config  | namespace|    width     |    height    |
+ * </pre>
+ * Ids are never released, the number of distinct images in the application is small.
+ */
+final class ImageKeys {
+
+    private static final int CONFIG_SHIFT = 28;
+    private static final int CONFIG_MASK = 0xf;
+    /** config code of {@link BitmapWorkerOptions#isAutoBitmapConfig()} loads */
+    static final int CONFIG_CODE_AUTO = 0xf;
+    private static final int NAMESPACE_SHIFT = 24;
+    private static final int NAMESPACE_MASK = 0xf;
+    private static final int WIDTH_SHIFT = 12;
+    private static final int DIMENSION_MASK = 0xfff;
+
+    private static final HashMap<String, Integer> sIds = new HashMap<>();
+    // base key of id i is at index i - 1,  0 is never a valid id
+    private static final ArrayList<String> sBaseKeys = new ArrayList<>();
+
+    /**
+     * Non instantiable.
+     */
+    private ImageKeys() {
+    }
+
+    /**
+     * @return positive id of the base key,  the same key always returns the same id
+     */
+    static synchronized int intern(String baseKey) {
+        Integer id = sIds.get(baseKey);
+        if (id == null) {
+            sBaseKeys.add(baseKey);
+            id = sBaseKeys.size();
+            sIds.put(baseKey, id);
+        }
+        return id;
+    }
+
+    static synchronized String getBaseKey(int baseId) {
+        return baseId > 0 && baseId <= sBaseKeys.size() ? sBaseKeys.get(baseId - 1) : null;
+    }
+
+    /**
+     * @return code of the requested bitmap config: 0 for the default, ordinal + 1 for an
+     * explicit config and {@link #CONFIG_CODE_AUTO} when the config is picked per image, so
+     * the variants of one image never share a key
+     */
+    static int getConfigCode(BitmapWorkerOptions options) {
+        if (options.getBitmapConfig() != null) {
+            return options.getBitmapConfig().ordinal() + 1;
+        }
+        return options.isAutoBitmapConfig() ? CONFIG_CODE_AUTO : 0;
+    }
+
+    /**
+     * @param configCode see {@link #getConfigCode}
+     * @param width width class or pixels, 0 ~ 4095
+     * @param height height class or pixels, 0 ~ 4095
+     */
+    static long pack(int baseId, int configCode, int width, int height) {
+        return pack(0, baseId, configCode, width, height);
+    }
+
+    /**
+     * @param namespace owner of the key, 0 ~ 15
+     * @param configCode see {@link #getConfigCode}
+     * @param width width class or pixels, 0 ~ 4095
+     * @param height height class or pixels, 0 ~ 4095
+     */
+    static long pack(int namespace, int baseId, int configCode, int width, int height) {
+        return ((long) baseId << 32) | ((long) (configCode & CONFIG_MASK) << CONFIG_SHIFT)
+                | ((namespace & NAMESPACE_MASK) << NAMESPACE_SHIFT)
+                | ((width & DIMENSION_MASK) << WIDTH_SHIFT) | (height & DIMENSION_MASK);
+    }
+
+    static int getBaseId(long key) {
+        return (int) (key >>> 32);
+    }
+
+    static int getConfigCode(long key) {
+        return (int) (key >>> CONFIG_SHIFT) & CONFIG_MASK;
+    }
+
+    static int getNamespace(long key) {
+        return (int) (key >>> NAMESPACE_SHIFT) & NAMESPACE_MASK;
+    }
+
+    static int getWidth(long key) {
+        return (int) (key >>> WIDTH_SHIFT) & DIMENSION_MASK;
+    }
+
+    static int getHeight(long key) {
+        return (int) key & DIMENSION_MASK;
+    }
+}
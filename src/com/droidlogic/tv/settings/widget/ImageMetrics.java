@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.widget;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Always-on counters of the image stack, collected with
+ * {@code adb shell dumpsys activity <activity>}, see {@link BitmapDownloader#dump}.
+ * <p>
+ * Recording is a few atomic increments, no locks and no allocation, so it stays enabled in
+ * release builds.  Memory cache lookups are counted per front-end and per size bucket of the
+ * request (the {@link BitmapDownloader#SIZE_BUCKET} class of the larger requested dimension,
+ * or the original size).  Latencies are kept in {@link Histogram}s.
+ */
+final class ImageMetrics {
+
+    /** size bucket of requests without width and height */
+    static final int BUCKET_ORIGINAL = BitmapDownloader.SIZE_BUCKET.length;
+
+    private static final int BUCKET_COUNT = BUCKET_ORIGINAL + 1;
+
+    // indexed by namespace, see ImageEngine
+    private static final int NAMESPACE_COUNT = 4;
+
+    private static final ImageMetrics sInstance = new ImageMetrics();
+
+    /**
+     * Histogram of durations in power of two millisecond buckets: bucket 0 counts durations
+     * under 1ms, bucket i counts [2^(i-1), 2^i) ms, the last bucket is open ended.
+     * Percentiles are reported as the upper bound of their bucket.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 16;
+
+        private final String mName;
+        private final AtomicIntegerArray mCounts = new AtomicIntegerArray(BUCKETS);
+        private final AtomicLong mTotalMs = new AtomicLong();
+        private final AtomicLong mMaxMs = new AtomicLong();
+
+        Histogram(String name) {
+            mName = name;
+        }
+
+        void record(long ms) {
+            if (ms < 0) {
+                ms = 0;
+            }
+            final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms));
+            mCounts.incrementAndGet(bucket);
+            mTotalMs.addAndGet(ms);
+            long max;
+            while (ms > (max = mMaxMs.get()) && !mMaxMs.compareAndSet(max, ms)) {
+            }
+        }
+
+        int getCount() {
+            int count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += mCounts.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * @return upper bound in milliseconds of the bucket holding the percentile, 0 if
+         * nothing was recorded
+         */
+        long getPercentileMs(int percentile) {
+            final int count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = ((long) count * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                seen += mCounts.get(i);
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return mMaxMs.get();
+        }
+
+        @Override
+        public String toString() {
+            final int count = getCount();
+            return String.format(Locale.US,
+                    "%s[count=%d,avgMs=%.1f,p50<=%d,p90<=%d,p99<=%d,maxMs=%d]",
+                    mName, count, count == 0 ? 0f : (float) mTotalMs.get() / count,
+                    getPercentileMs(50), getPercentileMs(90), getPercentileMs(99),
+                    mMaxMs.get());
+        }
+    }
+
+    private final AtomicIntegerArray mMemoryHits =
+            new AtomicIntegerArray(NAMESPACE_COUNT * BUCKET_COUNT);
+    private final AtomicIntegerArray mMemoryMisses =
+            new AtomicIntegerArray(NAMESPACE_COUNT * BUCKET_COUNT);
+
+    private final Histogram mQueueWait = new Histogram("queueWait");
+    private final AtomicInteger mDecodeCount = new AtomicInteger();
+    private final AtomicLong mDecodedBytes = new AtomicLong();
+
+    static ImageMetrics getInstance() {
+        return sInstance;
+    }
+
+    private ImageMetrics() {
+    }
+
+    /**
+     * @return size bucket of the request, {@link #BUCKET_ORIGINAL} if no size is specified
+     */
+    static int getSizeBucket(BitmapWorkerOptions options) {
+        if (options.getWidth() == BitmapWorkerOptions.MAX_IMAGE_DIMENSION_PX
+                && options.getHeight() == BitmapWorkerOptions.MAX_IMAGE_DIMENSION_PX) {
+            return BUCKET_ORIGINAL;
+        }
+        final int size = Math.max(
+                options.getWidth() == BitmapWorkerOptions.MAX_IMAGE_DIMENSION_PX
+                        ? 0 : options.getWidth(),
+                options.getHeight() == BitmapWorkerOptions.MAX_IMAGE_DIMENSION_PX
+                        ? 0 : options.getHeight());
+        final int[] buckets = BitmapDownloader.SIZE_BUCKET;
+        for (int i = 0; i < buckets.length; i++) {
+            if (size <= buckets[i]) {
+                return i;
+            }
+        }
+        return buckets.length - 1;
+    }
+
+    private static String getSizeBucketName(int bucket) {
+        if (bucket == BUCKET_ORIGINAL) {
+            return "original";
+        }
+        final int[] buckets = BitmapDownloader.SIZE_BUCKET;
+        return bucket == buckets.length - 1 ? ">" + buckets[bucket - 1] : "<=" + buckets[bucket];
+    }
+
+    /**
+     * Records a memory cache lookup of a front-end.
+     * @param namespace {@link ImageEngine#NAMESPACE_BITMAP},
+     * {@link ImageEngine#NAMESPACE_DRAWABLE} or {@link ImageEngine#NAMESPACE_ICON}
+     */
+    void recordMemoryLookup(int namespace, BitmapWorkerOptions options, boolean hit) {
+        final int index = namespace * BUCKET_COUNT + getSizeBucket(options);
+        (hit ? mMemoryHits : mMemoryMisses).incrementAndGet(index);
+    }
+
+    /**
+     * Records the time a load waited for a thread of {@link PriorityScheduler}.
+     */
+    void recordQueueWait(long ms) {
+        mQueueWait.record(ms);
+    }
+
+    /**
+     * Records a decoded bitmap.
+     */
+    void recordDecode(int bytes) {
+        mDecodeCount.incrementAndGet();
+        mDecodedBytes.addAndGet(bytes);
+    }
+
+    int getMemoryHitCount(int namespace, int bucket) {
+        return mMemoryHits.get(namespace * BUCKET_COUNT + bucket);
+    }
+
+    int getMemoryMissCount(int namespace, int bucket) {
+        return mMemoryMisses.get(namespace * BUCKET_COUNT + bucket);
+    }
+
+    long getDecodedBytes() {
+        return mDecodedBytes.get();
+    }
+
+    Histogram getQueueWait() {
+        return mQueueWait;
+    }
+
+    /**
+     * Prints the memory cache hit ratios of the namespace.
+     */
+    void dumpMemoryLookups(String prefix, PrintWriter writer, int namespace) {
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            final int hits = getMemoryHitCount(namespace, bucket);
+            final int lookups = hits + getMemoryMissCount(namespace, bucket);
+            writer.print(prefix);
+            writer.print("memory cache ");
+            writer.print(getSizeBucketName(bucket));
+            writer.print(": ");
+            writer.print(hits);
+            writer.print('/');
+            writer.print(lookups);
+            if (lookups > 0) {
+                writer.print(" hits (");
+                writer.print(100 * hits / lookups);
+                writer.println("%)");
+            } else {
+                writer.println(" hits");
+            }
+        }
+    }
+
+    /**
+     * Prints the counters shared by all front-ends: scheduling, pipeline stages, http and
+     * decoding.
+     */
+    void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println(mQueueWait);
+        final ImagePipeline pipeline = ImagePipeline.getInstance();
+        final ImagePipeline.Stage[] stages = { pipeline.getFetchStage(),
+                pipeline.getDecodeStage(), pipeline.getPostProcessStage() };
+        for (ImagePipeline.Stage stage : stages) {
+            writer.print(prefix);
+            writer.println(stage);
+            writer.print(prefix);
+            writer.println(stage.getLatency());
+        }
+        final HttpImageFetcher fetcher = HttpImageFetcher.getInstance();
+        writer.print(prefix);
+        writer.println(fetcher);
+        writer.print(prefix);
+        writer.println(fetcher.getLatency());
+        writer.print(prefix);
+        writer.println(ScalePlanner.getStats());
+        writer.print(prefix);
+        writer.print("decoded: ");
+        writer.print(mDecodeCount.get());
+        writer.print(" bitmaps, ");
+        writer.print(mDecodedBytes.get());
+        writer.println(" bytes");
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.widget;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.droidlogic.tv.settings.util.DecodeCancelledException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits loading an image into fetch, decode and post-process stages.
+ * <p>
+ * Fetch reads a remote source into memory on the I/O thread of the load (the threads of
+ * {@link PriorityScheduler}, sized for latency).  The body is read into a single array, sized
+ * by the content length when it is known, which the decoder reads in place.  Decode and
+ * post-process (scaling) run on pools sized for the available cores, so a slow HTTP read
+ * never holds a decode slot.  Once fetched, the load is handed to the decode stage with
+ * {@link #decodeLater} and the I/O thread takes the next load, so fetches and decodes
+ * overlap for more loads than there are I/O threads.
+ * Local sources skip the fetch stage, the decoder reads them directly and only buffers the
+ * image header, see {@link com.droidlogic.tv.settings.util.ImageHeaderParser}.
+ * Each pool stage has a bounded queue, a full queue blocks the I/O thread handing work over
+ * until a slot is free.
+ */
+final class ImagePipeline {
+
+    private static final String TAG = "ImagePipeline";
+
+    private static final boolean DEBUG = false;
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    // keep one core for UI thread when there are enough of them
+    private static final int DECODE_POOL_SIZE = Math.max(1, CPU_COUNT - 1);
+    private static final int DECODE_QUEUE_SIZE = DECODE_POOL_SIZE * 2;
+
+    private static final int POST_PROCESS_POOL_SIZE = Math.max(1, CPU_COUNT / 2);
+    private static final int POST_PROCESS_QUEUE_SIZE = POST_PROCESS_POOL_SIZE * 2;
+
+    // initial fetch buffer when the length of the body is unknown
+    private static final int FETCH_BUFFER_SIZE = 64 * 1024;
+    // don't trust a larger content length for sizing, the buffer grows if the body is larger
+    private static final int MAX_FETCH_PRESIZE = 4 * 1024 * 1024;
+    // larger bodies fail the fetch instead of growing the buffer further
+    private static final int MAX_FETCH_SIZE = 16 * 1024 * 1024;
+
+    private static final ImagePipeline sInstance = new ImagePipeline();
+
+    /**
+     * One stage of the pipeline, counts the work done by the stage.
+     */
+    static final class Stage {
+        private final String mName;
+        // stage of the current thread, work submitted from a thread of the same stage runs
+        // inline
+        private static final ThreadLocal<Stage> sCurrentStage = new ThreadLocal<>();
+
+        // null for the fetch stage, which runs on the calling thread
+        private final ThreadPoolExecutor mExecutor;
+        // admission of work, pool size plus queue size
+        private final Semaphore mSlots;
+        private final AtomicInteger mWaiting = new AtomicInteger();
+        private final AtomicInteger mActive = new AtomicInteger();
+        private final AtomicInteger mCompletedCount = new AtomicInteger();
+        private final AtomicInteger mCancelledCount = new AtomicInteger();
+        private final AtomicLong mServiceTimeNs = new AtomicLong();
+        private final ImageMetrics.Histogram mLatency;
+
+        private Stage(String name) {
+            mName = name;
+            mLatency = new ImageMetrics.Histogram(name + " latency");
+            mExecutor = null;
+            mSlots = null;
+        }
+
+        private Stage(final String name, int poolSize, int queueSize) {
+            mName = name;
+            mLatency = new ImageMetrics.Histogram(name + " latency");
+            mExecutor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    sCurrentStage.set(Stage.this);
+                                    r.run();
+                                }
+                            }, name + " #" + mCount.getAndIncrement());
+                        }
+                    });
+            mSlots = new Semaphore(poolSize + queueSize);
+        }
+
+        private <T> T measure(Callable<T> work) throws Exception {
+            mActive.incrementAndGet();
+            final long start = SystemClock.elapsedRealtimeNanos();
+            try {
+                return work.call();
+            } catch (DecodeCancelledException e) {
+                mCancelledCount.incrementAndGet();
+                throw e;
+            } finally {
+                final long timeNs = SystemClock.elapsedRealtimeNanos() - start;
+                mServiceTimeNs.addAndGet(timeNs);
+                mLatency.record(timeNs / 1000000);
+                mCompletedCount.incrementAndGet();
+                mActive.decrementAndGet();
+            }
+        }
+
+        /**
+         * Runs the work in this stage and waits for its result.
+         */
+        <T> T run(final Callable<T> work) throws IOException {
+            if (mExecutor == null || sCurrentStage.get() == this) {
+                try {
+                    return measure(work);
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            Future<T> future = null;
+            try {
+                mWaiting.incrementAndGet();
+                try {
+                    mSlots.acquire();
+                } finally {
+                    mWaiting.decrementAndGet();
+                }
+                try {
+                    future = mExecutor.submit(new Callable<T>() {
+                        @Override
+                        public T call() throws Exception {
+                            try {
+                                return measure(work);
+                            } finally {
+                                mSlots.release();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    mSlots.release();
+                    throw e;
+                }
+                return future.get();
+            } catch (InterruptedException e) {
+                // the load was cancelled, don't leave the work queued.  Work that already
+                // started finishes and releases its slot, the result is dropped
+                if (future != null && mExecutor.remove((Runnable) future)) {
+                    mSlots.release();
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(mName + " interrupted");
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+
+        /**
+         * Hands the work to a thread of this stage without waiting for it, blocks while the
+         * queue of the stage is full.  The work is not measured, the stage calls it makes
+         * run inline and are.
+         */
+        void execute(final Runnable work) {
+            mWaiting.incrementAndGet();
+            try {
+                mSlots.acquireUninterruptibly();
+            } finally {
+                mWaiting.decrementAndGet();
+            }
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            work.run();
+                        } finally {
+                            mSlots.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                mSlots.release();
+                throw e;
+            }
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        /**
+         * @return number of works waiting for a thread of the stage, including the ones
+         * blocked because the queue is full
+         */
+        int getQueueDepth() {
+            return mWaiting.get() + (mExecutor == null ? 0 : mExecutor.getQueue().size());
+        }
+
+        /**
+         * @return number of works being processed by the stage
+         */
+        int getActiveCount() {
+            return mActive.get();
+        }
+
+        int getCompletedCount() {
+            return mCompletedCount.get();
+        }
+
+        /**
+         * @return number of works aborted because their load was cancelled
+         */
+        int getCancelledCount() {
+            return mCancelledCount.get();
+        }
+
+        /**
+         * @return average service time in milliseconds, not including time in queue
+         */
+        float getAverageServiceTimeMs() {
+            final int count = mCompletedCount.get();
+            return count == 0 ? 0f : mServiceTimeNs.get() / 1000000f / count;
+        }
+
+        /**
+         * @return distribution of service times
+         */
+        ImageMetrics.Histogram getLatency() {
+            return mLatency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s[depth=%d,active=%d,completed=%d,cancelled=%d,"
+                    + "serviceMs=%.2f]", mName, getQueueDepth(), getActiveCount(),
+                    getCompletedCount(), getCancelledCount(), getAverageServiceTimeMs());
+        }
+    }
+
+    private final Stage mFetch = new Stage("ImageFetch");
+    private final Stage mDecode = new Stage("ImageDecode", DECODE_POOL_SIZE, DECODE_QUEUE_SIZE);
+    private final Stage mPostProcess =
+            new Stage("ImagePostProcess", POST_PROCESS_POOL_SIZE, POST_PROCESS_QUEUE_SIZE);
+
+    static ImagePipeline getInstance() {
+        return sInstance;
+    }
+
+    private ImagePipeline() {
+    }
+
+    /**
+     * Reads the stream fully and closes it.
+     * @param length expected length of the stream, -1 if unknown
+     * @return stream over the fetched bytes, supports unlimited mark() and reset()
+     * @throws IOException also if the stream is longer than {@link #MAX_FETCH_SIZE}
+     */
+    InputStream fetch(final InputStream in, final int length) throws IOException {
+        return mFetch.run(new Callable<InputStream>() {
+            @Override
+            public InputStream call() throws IOException {
+                try {
+                    if (length > MAX_FETCH_SIZE) {
+                        throw new IOException("body of " + length + " bytes is too large");
+                    }
+                    byte[] buffer = new byte[length > 0 ? Math.min(length, MAX_FETCH_PRESIZE)
+                            : FETCH_BUFFER_SIZE];
+                    int size = 0;
+                    while (true) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedIOException("fetch cancelled");
+                        }
+                        if (size == buffer.length) {
+                            // full, usually the whole body when the length was known
+                            final int next = in.read();
+                            if (next == -1) {
+                                break;
+                            }
+                            if (size == MAX_FETCH_SIZE) {
+                                throw new IOException("body is larger than " + MAX_FETCH_SIZE
+                                        + " bytes");
+                            }
+                            buffer = Arrays.copyOf(buffer,
+                                    Math.min(buffer.length * 2, MAX_FETCH_SIZE));
+                            buffer[size++] = (byte) next;
+                            continue;
+                        }
+                        final int count = in.read(buffer, size, buffer.length - size);
+                        if (count == -1) {
+                            break;
+                        }
+                        size += count;
+                    }
+                    if (DEBUG) {
+                        Log.d(TAG, "fetched " + size + " bytes, expected " + length);
+                    }
+                    if (buffer.length - size > size / 4) {
+                        // up to twice the body after growing, don't hold it through the decode
+                        buffer = Arrays.copyOf(buffer, size);
+                    }
+                    // the decoder reads the fetch buffer in place
+                    return new ByteArrayInputStream(buffer, 0, size);
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    <T> T decode(Callable<T> work) throws IOException {
+        return mDecode.run(work);
+    }
+
+    /**
+     * Continues a load whose source is fetched on a thread of the decode stage, the calling
+     * I/O thread does not wait for it.
+     */
+    void decodeLater(Runnable load) {
+        mDecode.execute(load);
+    }
+
+    <T> T postProcess(Callable<T> work) throws IOException {
+        return mPostProcess.run(work);
+    }
+
+    Stage getFetchStage() {
+        return mFetch;
+    }
+
+    Stage getDecodeStage() {
+        return mDecode;
+    }
+
+    Stage getPostProcessStage() {
+        return mPostProcess;
+    }
+
+    @Override
+    public String toString() {
+        return mFetch + " " + mDecode + " " + mPostProcess;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.widget;
+
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.util.LongSparseArray;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import com.droidlogic.tv.settings.R;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Table of image loads that are currently running, keyed by the requested image and size.
+ * <p>
+ * The first request for a key starts the load, later requests for the same key subscribe to
+ * the pending load and receive the same result, so N views showing the same URI cost one
+ * fetch and one decode.  The load itself is only cancelled when its last subscriber cancels,
+ * a load that has not started yet is then dropped from the queue of its scheduler.
+ *
+ * @param <R> type of the loaded result, Bitmap or Drawable
+ */
+class InFlightRequests<R> {
+
+    /**
+     * Receives the result of a pending load, called on UI thread.
+     */
+    interface Subscriber<R> {
+        void onResult(R result);
+    }
+
+    /**
+     * A load shared by one or more subscriptions.
+     */
+    static final class Pending<R> {
+        final long mKey;
+        final ArrayList<Subscription<R>> mSubscriptions = new ArrayList<>(2);
+        AsyncTask<?, ?, ?> mTask;
+        PriorityScheduler.Ticket mTicket;
+        CancellationSignal mCancellationSignal;
+
+        Pending(long key) {
+            mKey = key;
+        }
+    }
+
+    /**
+     * Handle returned to a requester,  used for cancelling its interest in the load.
+     */
+    static final class Subscription<R> {
+        final Subscriber<R> mSubscriber;
+        private final InFlightRequests<R> mOwner;
+        private final boolean mStartsLoad;
+        private Pending<R> mPending;
+
+        Subscription(InFlightRequests<R> owner, Pending<R> pending, Subscriber<R> subscriber,
+                boolean startsLoad) {
+            mOwner = owner;
+            mPending = pending;
+            mSubscriber = subscriber;
+            mStartsLoad = startsLoad;
+        }
+
+        /**
+         * @return true if there was no pending load for the key, the requester must start one
+         * and attach it with {@link InFlightRequests#setTask}
+         */
+        boolean startsLoad() {
+            return mStartsLoad;
+        }
+
+        Pending<R> getPending() {
+            return mPending;
+        }
+
+        /**
+         * @see InFlightRequests#cancel(Subscription)
+         */
+        boolean cancel() {
+            return mOwner.cancel(this);
+        }
+    }
+
+    private final LongSparseArray<Pending<R>> mPending = new LongSparseArray<>();
+
+    /**
+     * @return the key of a load, requests with the same key receive identical results
+     */
+    static long getKey(BitmapWorkerOptions options) {
+        // options never exceed MAX_IMAGE_DIMENSION_PX, exact size fits in the packed key
+        return ImageKeys.pack(options.getCacheKeyId(), ImageKeys.getConfigCode(options),
+                options.getWidth(), options.getHeight());
+    }
+
+    /**
+     * @param priority priority of the requester, a queued load is promoted when a requester
+     *     with a higher priority subscribes to it
+     */
+    synchronized Subscription<R> subscribe(long key, int priority, Subscriber<R> subscriber) {
+        Pending<R> pending = mPending.get(key);
+        final boolean startsLoad = pending == null;
+        if (startsLoad) {
+            pending = new Pending<>(key);
+            mPending.put(key, pending);
+        } else if (pending.mTicket != null) {
+            pending.mTicket.promote(priority);
+        }
+        Subscription<R> subscription = new Subscription<>(this, pending, subscriber, startsLoad);
+        pending.mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * @param ticket the ticket the task is executed with
+     * @param cancellationSignal aborts reads and decodes of the task already in progress
+     */
+    synchronized void setTask(Pending<R> pending, AsyncTask<?, ?, ?> task,
+            PriorityScheduler.Ticket ticket, CancellationSignal cancellationSignal) {
+        pending.mTask = task;
+        pending.mTicket = ticket;
+        pending.mCancellationSignal = cancellationSignal;
+    }
+
+    /**
+     * Removes the subscription from its load,  the load is cancelled when this was the last
+     * subscription.
+     * @return true if the subscription will not receive a result
+     */
+    synchronized boolean cancel(Subscription<R> subscription) {
+        final Pending<R> pending = subscription.mPending;
+        if (pending == null || !pending.mSubscriptions.remove(subscription)) {
+            return false;
+        }
+        subscription.mPending = null;
+        if (pending.mSubscriptions.isEmpty()) {
+            if (mPending.get(pending.mKey) == pending) {
+                mPending.remove(pending.mKey);
+            }
+            if (pending.mTicket != null) {
+                // not started yet, never take a thread for it
+                pending.mTicket.drop();
+            }
+            if (pending.mTask != null) {
+                pending.mTask.cancel(true);
+            }
+            if (pending.mCancellationSignal != null) {
+                // interrupting the I/O thread leaves a decode on a pipeline thread running
+                pending.mCancellationSignal.cancel();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the finished load from the table.
+     * @return subscribers that are still waiting for the result, in subscription order
+     */
+    synchronized List<Subscriber<R>> complete(Pending<R> pending) {
+        if (mPending.get(pending.mKey) == pending) {
+            mPending.remove(pending.mKey);
+        }
+        final int count = pending.mSubscriptions.size();
+        ArrayList<Subscriber<R>> subscribers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Subscription<R> subscription = pending.mSubscriptions.get(i);
+            subscription.mPending = null;
+            subscribers.add(subscription.mSubscriber);
+        }
+        pending.mSubscriptions.clear();
+        return subscribers;
+    }
+
+    /**
+     * Cancels the loads of the image views in the view hierarchy: loads started by loadBitmap()
+     * of {@link BitmapDownloader} or {@link DrawableDownloader}, and the
+     * {@link BitmapDownloader.BitmapCallback} tagged with R.id.imageDownloadCallback.
+     * Used when the view is recycled,  queued loads for it are dropped before they start.
+     */
+    static void cancelLoads(View view) {
+        if (view instanceof ImageView) {
+            Object tag = view.getTag(R.id.imageDownloadTask);
+            if (tag instanceof SoftReference) {
+                Object subscription = ((SoftReference<?>) tag).get();
+                if (subscription instanceof Subscription) {
+                    ((Subscription<?>) subscription).cancel();
+                }
+                ((SoftReference<?>) tag).clear();
+            }
+            Object callback = view.getTag(R.id.imageDownloadCallback);
+            if (callback instanceof BitmapDownloader.BitmapCallback) {
+                BitmapDownloader.getInstance(view.getContext()).cancelDownload(callback);
+                view.setTag(R.id.imageDownloadCallback, null);
+            }
+        } else if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            for (int i = 0, c = group.getChildCount(); i < c; i++) {
+                cancelLoads(group.getChildAt(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.widget;
+
+import java.util.Locale;
+
+/**
+ * A LRU cache keyed by primitive longs (see {@link ImageKeys}).
+ * <p>
+ * Same contract as {@link android.util.LruCache},  but keys are not boxed so {@link #get(long)}
+ * does not allocate, which matters for cache probes done on UI thread while binding views.
+ * {@link #entryRemoved} is called without holding the lock of the cache.
+ */
+class LongLruCache<V> {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final class Entry<V> {
+        final long mKey;
+        V mValue;
+        int mSize;
+        // next entry in the same hash bucket
+        Entry<V> mNext;
+        // doubly linked list in access order
+        Entry<V> mBefore;
+        Entry<V> mAfter;
+
+        Entry(long key) {
+            mKey = key;
+        }
+    }
+
+    private Entry<V>[] mTable;
+    // sentinel of the circular access list, mHeader.mAfter is the least recently used entry
+    private final Entry<V> mHeader = new Entry<>(0);
+    private int mCount;
+
+    private int mSize;
+    private int mMaxSize;
+
+    private int mPutCount;
+    private int mEvictionCount;
+    private int mHitCount;
+    private int mMissCount;
+
+    @SuppressWarnings("unchecked")
+    public LongLruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mTable = new Entry[INITIAL_CAPACITY];
+        mHeader.mBefore = mHeader.mAfter = mHeader;
+    }
+
+    private static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) ^ (int) h;
+    }
+
+    private Entry<V> find(long key) {
+        Entry<V> e = mTable[hash(key) & (mTable.length - 1)];
+        while (e != null && e.mKey != key) {
+            e = e.mNext;
+        }
+        return e;
+    }
+
+    private void unlink(Entry<V> e) {
+        e.mBefore.mAfter = e.mAfter;
+        e.mAfter.mBefore = e.mBefore;
+    }
+
+    private void linkLast(Entry<V> e) {
+        e.mAfter = mHeader;
+        e.mBefore = mHeader.mBefore;
+        mHeader.mBefore.mAfter = e;
+        mHeader.mBefore = e;
+    }
+
+    private Entry<V> removeEntry(long key) {
+        final int index = hash(key) & (mTable.length - 1);
+        Entry<V> prev = null;
+        Entry<V> e = mTable[index];
+        while (e != null && e.mKey != key) {
+            prev = e;
+            e = e.mNext;
+        }
+        if (e == null) {
+            return null;
+        }
+        if (prev == null) {
+            mTable[index] = e.mNext;
+        } else {
+            prev.mNext = e.mNext;
+        }
+        unlink(e);
+        mCount--;
+        mSize -= e.mSize;
+        return e;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void growIfNeeded() {
+        if (mCount <= mTable.length * 3 / 4) {
+            return;
+        }
+        Entry<V>[] oldTable = mTable;
+        mTable = new Entry[oldTable.length * 2];
+        for (Entry<V> head : oldTable) {
+            Entry<V> e = head;
+            while (e != null) {
+                Entry<V> next = e.mNext;
+                final int index = hash(e.mKey) & (mTable.length - 1);
+                e.mNext = mTable[index];
+                mTable[index] = e;
+                e = next;
+            }
+        }
+    }
+
+    /**
+     * Returns the value for key if it exists in the cache and moves it to the head of the
+     * queue, returns null otherwise.
+     */
+    public final synchronized V get(long key) {
+        Entry<V> e = find(key);
+        if (e == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        unlink(e);
+        linkLast(e);
+        return e.mValue;
+    }
+
+    /**
+     * Returns the value for key without changing its position in the queue or the hit and
+     * miss counts, for inspecting the cache.
+     */
+    public final synchronized V peek(long key) {
+        Entry<V> e = find(key);
+        return e == null ? null : e.mValue;
+    }
+
+    /**
+     * Caches value for key, the value is moved to the head of the queue.
+     * @return the previous value mapped by key
+     */
+    public final V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value == null");
+        }
+        Entry<V> previous;
+        synchronized (this) {
+            mPutCount++;
+            previous = removeEntry(key);
+            Entry<V> e = new Entry<>(key);
+            e.mValue = value;
+            e.mSize = safeSizeOf(key, value);
+            final int index = hash(key) & (mTable.length - 1);
+            e.mNext = mTable[index];
+            mTable[index] = e;
+            linkLast(e);
+            mCount++;
+            mSize += e.mSize;
+            growIfNeeded();
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous.mValue, value);
+        }
+        trimToSize(mMaxSize);
+        return previous != null ? previous.mValue : null;
+    }
+
+    /**
+     * Removes the eldest entries until the total of remaining entries is at or below the
+     * requested size.
+     * @param maxSize the maximum size of the cache before returning, -1 to evict everything
+     */
+    public void trimToSize(int maxSize) {
+        while (true) {
+            Entry<V> eldest;
+            synchronized (this) {
+                if (mSize <= maxSize || mCount == 0) {
+                    break;
+                }
+                eldest = removeEntry(mHeader.mAfter.mKey);
+                mEvictionCount++;
+            }
+            entryRemoved(true, eldest.mKey, eldest.mValue, null);
+        }
+    }
+
+    /**
+     * Removes the entry for key if it exists.
+     * @return the previous value mapped by key
+     */
+    public final V remove(long key) {
+        Entry<V> previous;
+        synchronized (this) {
+            previous = removeEntry(key);
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous.mValue, null);
+            return previous.mValue;
+        }
+        return null;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed.
+     * @param evicted true if the entry is being removed to make space, false if the removal
+     *     was caused by a {@link #put} or {@link #remove}
+     * @param newValue the new value for key, if it exists
+     */
+    protected void entryRemoved(boolean evicted, long key, V oldValue, V newValue) {
+    }
+
+    /**
+     * Returns the size of the entry for key and value in user-defined units,  default
+     * implementation returns 1.  An entry's size must not change while it is in the cache.
+     */
+    protected int sizeOf(long key, V value) {
+        return 1;
+    }
+
+    private int safeSizeOf(long key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * @return keys of the cache, ordered from least recently accessed to most recently
+     */
+    public final synchronized long[] keys() {
+        long[] keys = new long[mCount];
+        int i = 0;
+        for (Entry<V> e = mHeader.mAfter; e != mHeader; e = e.mAfter) {
+            keys[i++] = e.mKey;
+        }
+        return keys;
+    }
+
+    public final synchronized int size() {
+        return mSize;
+    }
+
+    public final synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    public final synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public final synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public final synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public final synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public final synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format(Locale.US, "LongLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mMaxSize, mHitCount, mMissCount, hitPercent);
+    }
+}
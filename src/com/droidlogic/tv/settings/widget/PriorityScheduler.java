@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.widget;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed size thread pool that runs image loads by priority instead of in FIFO order.
+ * <p>
+ * Loads with {@link BitmapWorkerOptions#PRIORITY_VISIBLE} run before loads with
+ * {@link BitmapWorkerOptions#PRIORITY_PREFETCH}, within one priority the newest request runs
+ * first: after a fast scroll the items now on screen were requested last.  Work that has not
+ * started can be dropped from the queue with {@link Ticket#drop()}.
+ * <p>
+ * A load with a {@link Fetch} only holds its thread for the I/O, the rest of the load is
+ * handed to the decode stage of {@link ImagePipeline} and the thread takes the next load.
+ */
+final class PriorityScheduler {
+
+    /**
+     * I/O phase of a load, run by its ticket before the load itself.
+     */
+    interface Fetch {
+        /**
+         * Reads the source on the thread of the scheduler, failures are reported to the load.
+         */
+        void fetch();
+
+        /**
+         * Called after the load, releases what the load did not use, e.g. it was cancelled.
+         */
+        void release();
+    }
+
+    /**
+     * Executor handed to {@link android.os.AsyncTask#executeOnExecutor} for one load,  keeps
+     * the priority of the load and its position in the queue.
+     */
+    final class Ticket implements Executor, Runnable, Comparable<Ticket> {
+        private int mPriority;
+        private long mSequence;
+        private Runnable mCommand;
+        private long mQueuedAt;
+        private Fetch mFetch;
+
+        private Ticket(int priority) {
+            mPriority = priority;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            synchronized (PriorityScheduler.this) {
+                mCommand = command;
+                mSequence = mNextSequence++;
+            }
+            mQueuedAt = SystemClock.elapsedRealtime();
+            mExecutor.execute(this);
+        }
+
+        /**
+         * Runs fetch on the thread of the scheduler before the load, the load then continues on
+         * the decode stage without holding the thread.  Set before the load is executed.
+         */
+        void setFetch(Fetch fetch) {
+            mFetch = fetch;
+        }
+
+        @Override
+        public void run() {
+            ImageMetrics.getInstance().recordQueueWait(SystemClock.elapsedRealtime() - mQueuedAt);
+            final Fetch fetch = mFetch;
+            if (fetch == null) {
+                mCommand.run();
+                return;
+            }
+            final Runnable command = mCommand;
+            try {
+                fetch.fetch();
+            } finally {
+                // the load completes, or reports the failure, on the decode stage
+                ImagePipeline.getInstance().decodeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            command.run();
+                        } finally {
+                            fetch.release();
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public int compareTo(Ticket another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            // newest first
+            return mSequence > another.mSequence ? -1 : (mSequence < another.mSequence ? 1 : 0);
+        }
+
+        /**
+         * Removes the load from the queue if it has not started.
+         * @return true if the load will never run
+         */
+        boolean drop() {
+            if (mExecutor.remove(this)) {
+                mDroppedCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Moves a queued load to a higher priority, e.g. a prefetched image became visible.
+         * The load is treated as the newest request of its new priority.
+         */
+        void promote(int priority) {
+            synchronized (PriorityScheduler.this) {
+                if (priority >= mPriority || !mExecutor.remove(this)) {
+                    return;
+                }
+                // re-insert, the queue orders elements when they are added
+                mPriority = priority;
+                mSequence = mNextSequence++;
+            }
+            mExecutor.execute(this);
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private long mNextSequence;
+    private final AtomicInteger mDroppedCount = new AtomicInteger();
+
+    /**
+     * @param name prefix of the worker thread names
+     */
+    PriorityScheduler(final String name, int poolSize) {
+        mExecutor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, name + " #" + mCount.getAndIncrement());
+                    }
+                });
+    }
+
+    /**
+     * @return a ticket to schedule one load, pass it as the executor of the task
+     */
+    Ticket newTicket(int priority) {
+        return new Ticket(priority);
+    }
+
+    /**
+     * @return number of loads waiting for a thread
+     */
+    int getQueueSize() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * @return number of loads removed from the queue before they started
+     */
+    int getDroppedCount() {
+        return mDroppedCount.get();
+    }
+}
@@ -16,141 +16,308 @@
 
 package com.droidlogic.tv.settings.widget;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
 import android.util.Log;
-import android.util.SparseArray;
 
-import java.lang.ref.SoftReference;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 
-// FIXME: this class saves recycle bitmap as SoftReference,  which is too vulnerable to
-// be garbage collected due to other part of application is re-allocating lots of
-// memory,  we will lose all SoftReference in a GC run.  We should maintain
-// certain amount of recycled bitmaps in memory, we may also need remove bitmap from LRUCache
-// if we are not able to get a recycled bitmap here.
+/**
+ * Pool of bitmaps that are no longer used, reused as inBitmap when decoding new bitmaps.
+ * <p>
+ * Bitmaps are held with strong references within a byte budget, so a GC run does not empty
+ * the pool in the middle of a scroll.  They are keyed by config and allocation size, both
+ * ARGB_8888 and RGB_565 bitmaps are pooled.  When the budget is exceeded or memory is
+ * trimmed, the bitmaps returned least recently are dropped first.
+ * <p>
+ * A request gets the smallest pooled bitmap whose allocation is large enough, as long as it
+ * wastes less than {@link #MAX_WASTE_RATIO} of the allocation.  The bitmap is reconfigured
+ * in place to the requested size.
+ */
 public class RecycleBitmapPool {
 
     private static final String TAG = "RecycleBitmapPool";
     private static final boolean DEBUG = false;
-    // allow reuse bitmap with larger bytes, set to 0 to disable different byte size
-    // FIXME: wait b/10608305 to be fixed then turn back on
-    private static final int LARGER_BITMAP_ALLOWED_REUSE = 0;
-    private static final boolean LARGER_BITMAP_ALLOWED = LARGER_BITMAP_ALLOWED_REUSE > 0;
-
-    private static Method sGetAllocationByteCount;
-
-    static {
-        try {
-            // KLP or later
-            sGetAllocationByteCount = Bitmap.class.getMethod("getAllocationByteCount");
-        } catch (NoSuchMethodException e) {
-        }
-    }
 
-    private final SparseArray<ArrayList<SoftReference<Bitmap>>> mRecycled8888 =
-            new SparseArray<ArrayList<SoftReference<Bitmap>>>();
+    /** default budget of the pool in bytes */
+    public static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /** a pooled bitmap is reused only if its allocation is at most this times the request */
+    static final float MAX_WASTE_RATIO = 1.5f;
+
+    private final int mMaxBytes;
+    private int mBytes;
+
+    // allocation size -> bitmaps of that size,  one table per pooled config.  Sorted for
+    // best-fit lookup, lists are removed when they become empty.
+    private final TreeMap<Integer, ArrayList<Bitmap>> mRecycled8888 = new TreeMap<>();
+    private final TreeMap<Integer, ArrayList<Bitmap>> mRecycled565 = new TreeMap<>();
+    // all pooled bitmaps, least recently returned first
+    private final LinkedHashSet<Bitmap> mReturnOrder = new LinkedHashSet<>();
+
+    private int mRequestCount;
+    private int mHitCount;
+    private int mAddCount;
+    private int mRejectCount;
+    private int mEvictionCount;
+
+    private int mDecodeCount;
+    private int mReusedDecodeCount;
+    private long mReusedBytes;
 
     public RecycleBitmapPool() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes budget of the pool in bytes
+     */
+    public RecycleBitmapPool(int maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        mMaxBytes = maxBytes;
     }
 
     public static int getSize(Bitmap bitmap) {
-        if (sGetAllocationByteCount != null) {
-            try {
-                return (Integer) sGetAllocationByteCount.invoke(bitmap);
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "getAllocationByteCount() failed", e);
-            } catch (IllegalAccessException e) {
-                Log.e(TAG, "getAllocationByteCount() failed", e);
-            } catch (InvocationTargetException e) {
-                Log.e(TAG, "getAllocationByteCount() failed", e);
-            }
-            sGetAllocationByteCount = null;
+        return bitmap.getAllocationByteCount();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        } else if (config == Bitmap.Config.RGB_565) {
+            return 2;
         }
-        return bitmap.getByteCount();
+        return 0;
     }
 
-    private static int getSize(int width, int height) {
-        if (width >= 2048 || height >= 2048) {
-            return 0;
+    private TreeMap<Integer, ArrayList<Bitmap>> getTable(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return mRecycled8888;
+        } else if (config == Bitmap.Config.RGB_565) {
+            return mRecycled565;
         }
-        return width * height * 4;
+        return null;
     }
 
     public void addRecycledBitmap(Bitmap bitmap) {
-        if (bitmap.isRecycled()) {
-            return;
-        }
-        Bitmap.Config config = bitmap.getConfig();
-        if (config != Bitmap.Config.ARGB_8888) {
-            return;
-        }
-        int key = getSize(bitmap);
-        if (key == 0) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()) {
             return;
         }
-        synchronized (mRecycled8888) {
-            ArrayList<SoftReference<Bitmap>> list = mRecycled8888.get(key);
+        final TreeMap<Integer, ArrayList<Bitmap>> table = getTable(bitmap.getConfig());
+        final int key = getSize(bitmap);
+        synchronized (this) {
+            if (table == null || key > mMaxBytes) {
+                mRejectCount++;
+                return;
+            }
+            if (!mReturnOrder.add(bitmap)) {
+                // already pooled
+                return;
+            }
+            ArrayList<Bitmap> list = table.get(key);
             if (list == null) {
-                list = new ArrayList<SoftReference<Bitmap>>();
-                mRecycled8888.put(key, list);
+                list = new ArrayList<>();
+                table.put(key, list);
             }
-            list.add(new SoftReference<Bitmap>(bitmap));
+            list.add(bitmap);
+            mBytes += key;
+            mAddCount++;
             if (DEBUG) {
                 Log.d(TAG, list.size() + " add bitmap " + bitmap.getWidth() + " "
-                        + bitmap.getHeight());
+                        + bitmap.getHeight() + " " + bitmap.getConfig());
             }
+            trimToSizeLocked(mMaxBytes);
         }
     }
 
+    /**
+     * get a ARGB_8888 bitmap for decoding a bitmap of the size
+     */
     public Bitmap getRecycledBitmap(int width, int height) {
-        int key = getSize(width, height);
-        if (key == 0) {
-            return null;
-        }
-        synchronized (mRecycled8888) {
-            // for the new version with getAllocationByteCount(), we allow larger size
-            // to be reused for the bitmap,  otherwise we just looks for same size
-            Bitmap bitmap = getRecycledBitmap(mRecycled8888.get(key));
-            if (sGetAllocationByteCount == null || bitmap != null) {
-                return bitmap;
+        return getRecycledBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * get a bitmap for decoding a bitmap of the size and config
+     * @return bitmap reconfigured to width x height and config, null if no pooled bitmap
+     * fits within {@link #MAX_WASTE_RATIO}
+     */
+    public Bitmap getRecycledBitmap(int width, int height, Bitmap.Config config) {
+        final TreeMap<Integer, ArrayList<Bitmap>> table = getTable(config);
+        final int target = width * height * getBytesPerPixel(config);
+        synchronized (this) {
+            mRequestCount++;
+            if (table == null || target <= 0) {
+                return null;
             }
-            if (LARGER_BITMAP_ALLOWED) {
-                for (int i = 0, c = mRecycled8888.size(); i < c; i++) {
-                    int k = mRecycled8888.keyAt(i);
-                    if (k > key && k <= key * LARGER_BITMAP_ALLOWED_REUSE) {
-                        bitmap = getRecycledBitmap(mRecycled8888.valueAt(i));
-                        if (bitmap != null) {
-                            return bitmap;
-                        }
-                    }
+            Map.Entry<Integer, ArrayList<Bitmap>> entry = table.ceilingEntry(target);
+            while (entry != null && entry.getKey() <= target * MAX_WASTE_RATIO) {
+                final int key = entry.getKey();
+                ArrayList<Bitmap> list = entry.getValue();
+                // most recently returned, likely still in CPU cache
+                Bitmap bitmap = list.remove(list.size() - 1);
+                if (list.isEmpty()) {
+                    table.remove(key);
+                }
+                mReturnOrder.remove(bitmap);
+                mBytes -= key;
+                try {
+                    bitmap.reconfigure(width, height, config);
+                } catch (IllegalArgumentException e) {
+                    // bitmap is not reusable any more, drop it and try the next one that fits
+                    Log.w(TAG, "can't reconfigure bitmap " + e);
+                    mEvictionCount++;
+                    entry = table.ceilingEntry(key);
+                    continue;
                 }
+                mHitCount++;
+                if (DEBUG) {
+                    Log.d(TAG, "reuse " + key + " bytes for " + width + "x" + height);
+                }
+                return bitmap;
             }
         }
         if (DEBUG) {
-            Log.d(TAG, "not avaialbe for " + width + "," + height);
+            Log.d(TAG, "not avaialbe for " + width + "," + height + " " + config);
         }
         return null;
     }
 
-    private static Bitmap getRecycledBitmap(ArrayList<SoftReference<Bitmap>> list) {
-        if (list != null && !list.isEmpty()) {
-            while (!list.isEmpty()) {
-                SoftReference<Bitmap> ref = list.remove(list.size() - 1);
-                Bitmap bitmap = ref.get();
-                if (bitmap != null && !bitmap.isRecycled()) {
-                    if (DEBUG) {
-                        Log.d(TAG, "reuse " + bitmap.getWidth() + " " + bitmap.getHeight());
-                    }
-                    return bitmap;
-                } else {
-                    if (DEBUG) {
-                        Log.d(TAG, " we lost SoftReference to bitmap");
-                    }
-                }
+    /**
+     * drop least recently returned bitmaps until the pool holds at most maxBytes
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        trimToSizeLocked(maxBytes);
+    }
+
+    private void trimToSizeLocked(int maxBytes) {
+        Iterator<Bitmap> iterator = mReturnOrder.iterator();
+        while (mBytes > maxBytes && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+            final int key = getSize(bitmap);
+            final TreeMap<Integer, ArrayList<Bitmap>> table = getTable(bitmap.getConfig());
+            ArrayList<Bitmap> list = table.get(key);
+            list.remove(bitmap);
+            if (list.isEmpty()) {
+                table.remove(key);
             }
+            mBytes -= key;
+            mEvictionCount++;
         }
-        return null;
+    }
+
+    /**
+     * Records the result of a decode that was given inBitmap from this pool.  A bitmap that
+     * the decoder did not use is returned to the pool.
+     * @param inBitmap bitmap from {@link #getRecycledBitmap}, may be null
+     * @param result decoded bitmap, may be null
+     */
+    public void onDecoded(Bitmap inBitmap, Bitmap result) {
+        final boolean reused = inBitmap != null && inBitmap == result;
+        final int decodeCount;
+        synchronized (this) {
+            decodeCount = ++mDecodeCount;
+            if (reused) {
+                mReusedDecodeCount++;
+                mReusedBytes += getSize(result);
+            }
+        }
+        if (inBitmap != null && !reused) {
+            addRecycledBitmap(inBitmap);
+        }
+        if (DEBUG && (decodeCount & 0x3f) == 0) {
+            Log.d(TAG, toString());
+        }
+    }
+
+    /**
+     * release pooled bitmaps for {@link ComponentCallbacks2#onTrimMemory(int)}
+     * @return bytes released from the pool
+     */
+    public synchronized int trimMemory(int level) {
+        final int bytes = mBytes;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSizeLocked(0);
+        } else {
+            trimToSizeLocked(mMaxBytes / 2);
+        }
+        return bytes - mBytes;
+    }
+
+    public synchronized int size() {
+        return mBytes;
+    }
+
+    public int maxSize() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return number of getRecycledBitmap() calls
+     */
+    public synchronized int requestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return number of getRecycledBitmap() calls that returned a bitmap for reuse
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int addCount() {
+        return mAddCount;
+    }
+
+    /**
+     * @return number of returned bitmaps not pooled because of config or size
+     */
+    public synchronized int rejectCount() {
+        return mRejectCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return number of decodes recorded by {@link #onDecoded}
+     */
+    public synchronized int decodeCount() {
+        return mDecodeCount;
+    }
+
+    /**
+     * @return number of decodes that wrote into a pooled bitmap instead of allocating
+     */
+    public synchronized int reusedDecodeCount() {
+        return mReusedDecodeCount;
+    }
+
+    /**
+     * @return bytes of bitmap memory not allocated thanks to reuse
+     */
+    public synchronized long reusedBytes() {
+        return mReusedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int hitPercent = mRequestCount != 0 ? (100 * mHitCount / mRequestCount) : 0;
+        int avoidedPercent = mDecodeCount != 0 ? (100 * mReusedDecodeCount / mDecodeCount) : 0;
+        return String.format(Locale.US, "RecycleBitmapPool[size=%d,maxSize=%d,requests=%d,hits=%d,"
+                + "hitRate=%d%%,evictions=%d,decodes=%d,allocationsAvoided=%d%%,"
+                + "reusedBytes=%d]", mBytes, mMaxBytes, mRequestCount, mHitCount, hitPercent,
+                mEvictionCount, mDecodeCount, avoidedPercent, mReusedBytes);
     }
 }
@@ -16,31 +16,104 @@
 
 package com.droidlogic.tv.settings.widget;
 
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Reference counted object, the listener is called when the last reference is released.
+ * <p>
+ * In tracking mode every referenced object remembers the call sites that acquired its
+ * references.  {@link #dumpTracked} prints live objects and bytes per acquisition site, and
+ * the objects still referenced after their memory cache entry was evicted: their bitmaps
+ * can't go back to {@link RecycleBitmapPool}, usually a releaseRef() is missing.  Tracking
+ * captures a stack trace per addRef(), it is off unless {@link #setTrackingEnabled} is called.
+ */
 public class RefcountObject<T> {
 
+    private static final String TAG = "RefcountObject";
+
+    // frames of the call site recorded per acquisition
+    private static final int SITE_DEPTH = 3;
+
+    private static volatile boolean sTracking;
+    // objects with references, only filled in tracking mode
+    private static final HashSet<RefcountObject<?>> sTracked = new HashSet<>();
+
     public static interface RefcountListener {
         public void onRefcountZero(RefcountObject<?> object);
     }
 
+    /**
+     * Live objects and bytes of one acquisition site.
+     */
+    private static final class SiteStats {
+        int mCount;
+        long mBytes;
+    }
+
     private RefcountObject.RefcountListener mRefcountListener;
     private int mRefcount;
     private final T mObject;
+    // acquisition sites, null unless tracked
+    private LinkedHashSet<String> mSites;
+    // uptime the cache dropped its reference, 0 while cached
+    private long mEvictedTime;
 
     public RefcountObject(T object) {
         mObject = object;
     }
 
+    /**
+     * Turns tracking of acquisition sites on or off, objects referenced before tracking is
+     * turned on are not tracked.
+     */
+    public static void setTrackingEnabled(boolean enabled) {
+        sTracking = enabled;
+        if (!enabled) {
+            synchronized (sTracked) {
+                sTracked.clear();
+            }
+        }
+    }
+
+    public static boolean isTrackingEnabled() {
+        return sTracking;
+    }
+
     public void setRefcountListener(RefcountObject.RefcountListener listener) {
         mRefcountListener = listener;
     }
 
     public synchronized int addRef() {
         mRefcount++;
+        if (sTracking) {
+            if (mSites == null) {
+                mSites = new LinkedHashSet<>();
+            }
+            mSites.add(getAcquisitionSite());
+            synchronized (sTracked) {
+                sTracked.add(this);
+            }
+        }
         return mRefcount;
     }
 
     public synchronized int releaseRef() {
         mRefcount--;
+        if (mRefcount == 0 && mSites != null) {
+            mSites = null;
+            synchronized (sTracked) {
+                sTracked.remove(this);
+            }
+        }
         if (mRefcount == 0 && mRefcountListener != null) {
             mRefcountListener.onRefcountZero(this);
         }
@@ -51,7 +124,144 @@ public class RefcountObject<T> {
         return mRefcount;
     }
 
+    /**
+     * Called by the memory cache before it releases its reference to an evicted object, the
+     * object is then expected to be released soon by its other owners.
+     */
+    public synchronized void markEvicted() {
+        if (sTracking) {
+            mEvictedTime = SystemClock.uptimeMillis();
+        }
+    }
+
     public T getObject() {
         return mObject;
     }
+
+    private long getByteCount() {
+        return mObject instanceof Bitmap ? ((Bitmap) mObject).getAllocationByteCount() : 0;
+    }
+
+    /**
+     * @return "Class.method:line" of the callers of addRef(), nearest first
+     */
+    private static String getAcquisitionSite() {
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        StringBuilder site = new StringBuilder();
+        int depth = 0;
+        for (StackTraceElement frame : stack) {
+            if (frame.getClassName().equals(RefcountObject.class.getName())) {
+                continue;
+            }
+            if (depth > 0) {
+                site.append(" < ");
+            }
+            String className = frame.getClassName();
+            site.append(className.substring(className.lastIndexOf('.') + 1)).append('.')
+                    .append(frame.getMethodName()).append(':').append(frame.getLineNumber());
+            if (++depth == SITE_DEPTH) {
+                break;
+            }
+        }
+        return site.toString();
+    }
+
+    /**
+     * @param evictedForMs only count objects evicted at least this long ago, -1 for all live
+     *     objects
+     * @return live objects and bytes per acquisition site
+     */
+    private static HashMap<String, SiteStats> collect(long evictedForMs) {
+        ArrayList<RefcountObject<?>> tracked;
+        synchronized (sTracked) {
+            tracked = new ArrayList<>(sTracked);
+        }
+        final long now = SystemClock.uptimeMillis();
+        HashMap<String, SiteStats> stats = new HashMap<>();
+        for (RefcountObject<?> object : tracked) {
+            synchronized (object) {
+                if (object.mSites == null) {
+                    continue;
+                }
+                if (evictedForMs >= 0 && (object.mEvictedTime == 0
+                        || now - object.mEvictedTime < evictedForMs)) {
+                    continue;
+                }
+                final long bytes = object.getByteCount();
+                for (String site : object.mSites) {
+                    SiteStats siteStats = stats.get(site);
+                    if (siteStats == null) {
+                        siteStats = new SiteStats();
+                        stats.put(site, siteStats);
+                    }
+                    siteStats.mCount++;
+                    siteStats.mBytes += bytes;
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Logs the objects still referenced evictedForMs after their eviction, by acquisition
+     * site.  Their bytes are reuse lost by {@link RecycleBitmapPool}.
+     * @return number of objects reported
+     */
+    static int reportEvictedAlive(long evictedForMs) {
+        int count = 0;
+        long bytes = 0;
+        ArrayList<RefcountObject<?>> tracked;
+        synchronized (sTracked) {
+            tracked = new ArrayList<>(sTracked);
+        }
+        final long now = SystemClock.uptimeMillis();
+        for (RefcountObject<?> object : tracked) {
+            synchronized (object) {
+                if (object.mEvictedTime != 0 && now - object.mEvictedTime >= evictedForMs) {
+                    count++;
+                    bytes += object.getByteCount();
+                }
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        Log.w(TAG, count + " objects (" + bytes + " bytes) referenced " + evictedForMs
+                + "ms after eviction");
+        for (Map.Entry<String, SiteStats> entry : collect(evictedForMs).entrySet()) {
+            Log.w(TAG, "  " + entry.getValue().mCount + " objects, " + entry.getValue().mBytes
+                    + " bytes acquired at " + entry.getKey());
+        }
+        return count;
+    }
+
+    /**
+     * Prints live objects and bytes per acquisition site, and the ones evicted at least
+     * evictedForMs ago.  Prints nothing unless tracking is on.
+     */
+    static void dumpTracked(String prefix, PrintWriter writer, long evictedForMs) {
+        if (!sTracking) {
+            return;
+        }
+        writer.print(prefix);
+        writer.println("live refcount objects by acquisition site:");
+        dumpStats(prefix + "  ", writer, collect(-1));
+        writer.print(prefix);
+        writer.print("referenced ");
+        writer.print(evictedForMs);
+        writer.println("ms after eviction:");
+        dumpStats(prefix + "  ", writer, collect(evictedForMs));
+    }
+
+    private static void dumpStats(String prefix, PrintWriter writer,
+            HashMap<String, SiteStats> stats) {
+        for (Map.Entry<String, SiteStats> entry : stats.entrySet()) {
+            writer.print(prefix);
+            writer.print(entry.getValue().mCount);
+            writer.print(" objects, ");
+            writer.print(entry.getValue().mBytes);
+            writer.print(" bytes: ");
+            writer.println(entry.getKey());
+        }
+    }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.widget;
+
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import com.droidlogic.tv.settings.util.CancellableInputStream;
+import com.droidlogic.tv.settings.util.DecodeCancelledException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+
+/**
+ * I/O phase of loading an http image: the disk cache entry, its revalidation and the body of
+ * a new response read into memory, so the decode needs no network.
+ * <p>
+ * The ticket of the load runs {@link #fetch()} on its I/O thread and hands the rest of the
+ * load to the decode stage of {@link ImagePipeline}, see {@link PriorityScheduler.Ticket}.
+ * Loads without a ticket fetch on their own thread with {@link #await()}.
+ */
+final class RemoteImageFetch implements PriorityScheduler.Fetch {
+
+    private static final String TAG = "RemoteImageFetch";
+
+    private static final boolean DEBUG = false;
+
+    private final BitmapWorkerOptions mOptions;
+    private final CancellationSignal mCancellationSignal;
+
+    private boolean mFetched;
+    private Exception mError;
+    // entry to decode, from the disk cache or revalidated by a 304
+    private DiskBitmapCache.Snapshot mSnapshot;
+    // body of a new response and its validators
+    private InputStream mBody;
+    private HttpImageFetcher.Validators mValidators;
+
+    RemoteImageFetch(BitmapWorkerOptions options, CancellationSignal cancellationSignal) {
+        mOptions = options;
+        mCancellationSignal = cancellationSignal;
+    }
+
+    BitmapWorkerOptions getOptions() {
+        return mOptions;
+    }
+
+    @Override
+    public void fetch() {
+        mFetched = true;
+        try {
+            fetchSource();
+        } catch (IOException | RuntimeException e) {
+            mError = e;
+        }
+    }
+
+    /**
+     * Fetches on the calling thread unless the ticket already did.
+     * @throws IOException the failure of the fetch
+     */
+    void await() throws IOException {
+        if (!mFetched) {
+            mFetched = true;
+            fetchSource();
+        } else if (mError instanceof IOException) {
+            throw (IOException) mError;
+        } else if (mError != null) {
+            throw (RuntimeException) mError;
+        }
+    }
+
+    /**
+     * @return the disk cache entry to decode, null if there is a new body instead; the caller
+     * owns it
+     */
+    DiskBitmapCache.Snapshot takeSnapshot() {
+        final DiskBitmapCache.Snapshot snapshot = mSnapshot;
+        mSnapshot = null;
+        return snapshot;
+    }
+
+    /**
+     * @return the body of the new response in memory, the caller owns it
+     */
+    InputStream takeBody() {
+        final InputStream body = mBody;
+        mBody = null;
+        return body;
+    }
+
+    /**
+     * @return validators of the new response
+     */
+    HttpImageFetcher.Validators getValidators() {
+        return mValidators;
+    }
+
+    @Override
+    public void release() {
+        if (mSnapshot != null) {
+            mSnapshot.close();
+            mSnapshot = null;
+        }
+        if (mBody != null) {
+            try {
+                mBody.close();
+            } catch (IOException ignored) {
+            }
+            mBody = null;
+        }
+    }
+
+    /**
+     * @return true if the load was cancelled, as opposed to a network failure such as a
+     * timeout, which is also an {@link InterruptedIOException}
+     */
+    private boolean isLoadCancelled(IOException e) {
+        return e instanceof DecodeCancelledException || mCancellationSignal.isCanceled()
+                || Thread.currentThread().isInterrupted();
+    }
+
+    private void fetchSource() throws IOException {
+        final DiskBitmapCache diskCache = DiskBitmapCache.getInstance(mOptions.getContext());
+        DiskBitmapCache.Snapshot snapshot = diskCache.get(mOptions);
+        if (snapshot != null && snapshot.getValidators().isFresh()) {
+            mSnapshot = snapshot;
+            return;
+        }
+        URL url = new URL(mOptions.getResourceUri().toString());
+        if (DEBUG) {
+            Log.d(TAG, "Loading " + url);
+        }
+        HttpImageFetcher.Response response = null;
+        try {
+            try {
+                response = HttpImageFetcher.getInstance().fetch(url,
+                        snapshot != null ? snapshot.getValidators() : null);
+            } catch (IOException e) {
+                if (snapshot == null || isLoadCancelled(e)) {
+                    throw e;
+                }
+                Log.w(TAG, "serving stale " + url + ": " + e);
+            }
+            if (response == null || response.isNotModified()) {
+                if (response != null) {
+                    diskCache.refresh(mOptions, response.getValidators());
+                }
+                mSnapshot = snapshot;
+                snapshot = null;
+                return;
+            }
+            mValidators = response.getValidators();
+            // no buffering needed, ImagePipeline fetches the whole body into one array, the
+            // connection goes back to the pool before the decode
+            mBody = ImagePipeline.getInstance().fetch(
+                    new CancellableInputStream(response.getInputStream(), mCancellationSignal),
+                    response.getContentLength());
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+            if (response != null) {
+                response.close();
+            }
+            if (DEBUG) {
+                Log.d(TAG, "fetch done " + url);
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.widget;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Plans a decode that produces the output size in one allocation.
+ * <p>
+ * The decoder first subsamples by the largest power of two that keeps the image at least as
+ * large as the output (cheap, done while decoding), then scales the rest of the way with
+ * {@link BitmapFactory.Options#inDensity} / {@link BitmapFactory.Options#inTargetDensity}.
+ * No full size bitmap is handed to java just to be scaled down with
+ * {@link Bitmap#createScaledBitmap} and dropped.
+ * <p>
+ * Keeps counters of the planned decodes, logged when {@link #DEBUG} is set.
+ */
+final class ScalePlanner {
+
+    private static final String TAG = "ScalePlanner";
+    private static final boolean DEBUG = false;
+
+    // pixels the decoder may add to the planned output by rounding the subsampled size up and
+    // the density scale to nearest
+    private static final int ROUNDING_MARGIN = 2;
+
+    private int mSourceWidth;
+    private int mSourceHeight;
+    private int mSampleSize = 1;
+    private int mTargetWidth;
+    private int mTargetHeight;
+    private long mStartNs;
+
+    private static int sDecodeCount;
+    private static long sDecodeTimeNs;
+    private static int sPeakBytes;
+    private static long sAvoidedBytes;
+
+    /**
+     * Plans the decode for the bounds in bitmapOptions, fitting the image in maxWidth x
+     * maxHeight without changing its aspect ratio.  Images are never scaled up.  Sets
+     * inSampleSize, inDensity, inTargetDensity and clears inJustDecodeBounds.
+     * @param maxWidth maximum output width, 0 for no limit
+     * @param maxHeight maximum output height, 0 for no limit
+     */
+    static ScalePlanner plan(BitmapFactory.Options bitmapOptions, int maxWidth, int maxHeight) {
+        ScalePlanner plan = new ScalePlanner();
+        plan.mSourceWidth = bitmapOptions.outWidth;
+        plan.mSourceHeight = bitmapOptions.outHeight;
+        plan.mTargetWidth = plan.mSourceWidth;
+        plan.mTargetHeight = plan.mSourceHeight;
+
+        float scale = 1f;
+        if (maxWidth > 0 && plan.mSourceWidth > maxWidth) {
+            scale = (float) maxWidth / plan.mSourceWidth;
+        }
+        if (maxHeight > 0 && plan.mSourceHeight > maxHeight) {
+            scale = Math.min(scale, (float) maxHeight / plan.mSourceHeight);
+        }
+        if (scale < 1f) {
+            plan.mTargetWidth = Math.max(1, (int) (plan.mSourceWidth * scale));
+            plan.mTargetHeight = Math.max(1, (int) (plan.mSourceHeight * scale));
+            while (plan.mSourceWidth / (plan.mSampleSize * 2) >= plan.mTargetWidth
+                    && plan.mSourceHeight / (plan.mSampleSize * 2) >= plan.mTargetHeight) {
+                plan.mSampleSize *= 2;
+            }
+        }
+
+        bitmapOptions.inJustDecodeBounds = false;
+        bitmapOptions.inSampleSize = plan.mSampleSize;
+        final int sampledWidth = plan.getSampledWidth();
+        if (sampledWidth > plan.mTargetWidth) {
+            // the decoder scales by inTargetDensity / inDensity after subsampling
+            bitmapOptions.inScaled = true;
+            bitmapOptions.inDensity = sampledWidth;
+            bitmapOptions.inTargetDensity = plan.mTargetWidth;
+        } else {
+            bitmapOptions.inScaled = false;
+            bitmapOptions.inDensity = 0;
+            bitmapOptions.inTargetDensity = 0;
+        }
+        if (DEBUG) {
+            Log.d(TAG, "source " + plan.mSourceWidth + "x" + plan.mSourceHeight + " max "
+                    + maxWidth + "x" + maxHeight + " -> sample " + plan.mSampleSize + " target "
+                    + plan.mTargetWidth + "x" + plan.mTargetHeight);
+        }
+        plan.mStartNs = SystemClock.elapsedRealtimeNanos();
+        return plan;
+    }
+
+    private ScalePlanner() {
+    }
+
+    private int getSampledWidth() {
+        return Math.max(1, mSourceWidth / mSampleSize);
+    }
+
+    private int getSampledHeight() {
+        return Math.max(1, mSourceHeight / mSampleSize);
+    }
+
+    /**
+     * @return true if the output is smaller than the source
+     */
+    boolean isScaled() {
+        return mTargetWidth != mSourceWidth || mTargetHeight != mSourceHeight;
+    }
+
+    /**
+     * @return largest width the decoder can output for the plan, an inBitmap of this size is
+     * never rejected as too small
+     */
+    int getMaxOutputWidth() {
+        return mTargetWidth + ROUNDING_MARGIN;
+    }
+
+    /**
+     * @return largest height the decoder can output for the plan
+     */
+    int getMaxOutputHeight() {
+        return mTargetHeight + ROUNDING_MARGIN;
+    }
+
+    /**
+     * Restores the default density of a bitmap decoded with the plan, the density used for
+     * scaling must not change how large the bitmap is drawn.  Records the decode.
+     */
+    Bitmap finish(Bitmap bitmap) {
+        if (bitmap == null) {
+            return null;
+        }
+        bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+        final long timeNs = SystemClock.elapsedRealtimeNanos() - mStartNs;
+        final int bytes = bitmap.getAllocationByteCount();
+        ImageMetrics.getInstance().recordDecode(bytes);
+        synchronized (ScalePlanner.class) {
+            sDecodeCount++;
+            sDecodeTimeNs += timeNs;
+            sPeakBytes = Math.max(sPeakBytes, bytes);
+            if (getSampledWidth() > mTargetWidth) {
+                // the intermediate a separate scaling pass would have held with the output
+                sAvoidedBytes += (long) getSampledWidth() * getSampledHeight()
+                        * bytes / ((long) bitmap.getWidth() * bitmap.getHeight());
+            }
+            if (DEBUG && (sDecodeCount & 0x1f) == 0) {
+                Log.d(TAG, getStats());
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return counters of the decodes: count, average time, largest output and bytes of
+     * intermediate bitmaps not allocated
+     */
+    static synchronized String getStats() {
+        final float averageMs = sDecodeCount == 0 ? 0f : sDecodeTimeNs / 1000000f / sDecodeCount;
+        return String.format(Locale.US, "ScalePlanner[decodes=%d,averageMs=%.2f,peakBytes=%d,"
+                + "avoidedBytes=%d]", sDecodeCount, averageMs, sPeakBytes, sAvoidedBytes);
+    }
+}
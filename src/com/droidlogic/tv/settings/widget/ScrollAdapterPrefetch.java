@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.widget;
+
+/**
+ * The adapter can optionally implement ScrollAdapterPrefetch in addition to ScrollAdapter.
+ * {@link ScrollAdapterView} then loads the images of items that are about to scroll into view
+ * at {@link BitmapWorkerOptions#PRIORITY_PREFETCH}, see
+ * {@link ScrollAdapterView#setPrefetchDistance(int)}.
+ */
+public interface ScrollAdapterPrefetch extends ScrollAdapter {
+
+    /**
+     * provides the options of the image the item loads through {@link BitmapDownloader} when
+     * its view is bound, null if the item has no image to load.  The options must produce the
+     * same cache key as the ones used when binding the view.
+     */
+    public BitmapWorkerOptions getPrefetchOptions(int adapterIndex);
+
+}
@@ -28,6 +28,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.FocusFinder;
 import android.view.KeyEvent;
 import android.view.SoundEffectConstants;
@@ -140,6 +141,9 @@ public final class ScrollAdapterView extends AdapterView<Adapter> {
     private static final int MAX_RECYCLED_VIEWS = 10;
     private static final int MAX_RECYCLED_EXPANDED_VIEWS = 3;
 
+    /** default number of items ahead of the visible range whose images are prefetched */
+    private static final int DEFAULT_PREFETCH_DISTANCE = 4;
+
     // search range for stable id, see {@link #heuristicGetPersistentIndex()}
     private static final int SEARCH_ID_RANGE = 30;
 
@@ -167,8 +171,17 @@ public final class ScrollAdapterView extends AdapterView<Adapter> {
     private ScrollAdapter mAdapter;
     private ScrollAdapterCustomSize mAdapterCustomSize;
     private ScrollAdapterCustomAlign mAdapterCustomAlign;
+    private ScrollAdapterPrefetch mAdapterPrefetch;
     private int mSelectedSize;
 
+    /** number of items to prefetch ahead in the direction of scrolling, 0 to disable */
+    private int mPrefetchDistance = DEFAULT_PREFETCH_DISTANCE;
+    /** outstanding prefetches by adapter index */
+    private final SparseArray<BitmapDownloader.BitmapCallback> mPrefetches =
+            new SparseArray<>();
+    /** 1 when prefetching forward, -1 backward, 0 when nothing is prefetched */
+    private int mPrefetchDirection;
+
     // flag that we have made initial selection during refreshing ScrollAdapterView
     private boolean mMadeInitialSelection = false;
 
@@ -201,6 +214,8 @@ public final class ScrollAdapterView extends AdapterView<Adapter> {
             if (mAdapter != null) {
                 mAdapter.viewRemoved(child);
             }
+            // the view will show another item, drop image loads queued for the old one
+            InFlightRequests.cancelLoads(child);
             if (mViews != null && type >=0 && type < mViews.length
                     && mViews[type].size() < mMaxRecycledViews) {
                 mViews[type].add(child);
@@ -562,6 +577,8 @@ public final class ScrollAdapterView extends AdapterView<Adapter> {
         }
         mRecycleViews.updateAdapter(mAdapter);
         mRecycleExpandedViews.updateAdapter(mExpandAdapter);
+        // adapter indices may point to other items now
+        cancelPrefetches();
         mSelectedIndex = -1;
         mCurScroll.clear();
         mMadeInitialSelection = false;
@@ -724,6 +741,9 @@ public final class ScrollAdapterView extends AdapterView<Adapter> {
                 (ScrollAdapterCustomSize) adapter : null;
         mAdapterCustomAlign = adapter instanceof ScrollAdapterCustomAlign ?
                 (ScrollAdapterCustomAlign) adapter : null;
+        cancelPrefetches();
+        mAdapterPrefetch = adapter instanceof ScrollAdapterPrefetch ?
+                (ScrollAdapterPrefetch) adapter : null;
         mMeasuredSpec = -1;
         mLoadingState = null;
         mPendingSelection = -1;
@@ -885,6 +905,7 @@ public final class ScrollAdapterView extends AdapterView<Adapter> {
         // 4. perform scroll position based animation
         fireScrollChange();
         applyTransformations();
+        updatePrefetches();
 
         // 5. trigger another layout until the scroll stops
         if (!mScroll.isFinished()) {
@@ -1893,6 +1914,95 @@ public final class ScrollAdapterView extends AdapterView<Adapter> {
         }
     }
 
+    /**
+     * Prefetches images of the items within mPrefetchDistance past the visible range in the
+     * direction of scrolling.  Prefetches are cancelled when the direction reverses or the
+     * items leave the window.
+     */
+    private void updatePrefetches() {
+        if (mAdapterPrefetch == null || mPrefetchDistance <= 0 || mScroll.isFinished()) {
+            // keep what is queued when the scroll stops, the items are likely shown next
+            return;
+        }
+        final int first = getFirstVisiblePosition();
+        final int last = getLastVisiblePosition();
+        if (first < 0 || last < 0) {
+            return;
+        }
+        final int direction = mScroll.isMainAxisMovingForward() ? 1 : -1;
+        if (direction != mPrefetchDirection) {
+            cancelPrefetches();
+            mPrefetchDirection = direction;
+        }
+        final int start;
+        final int end;
+        if (direction > 0) {
+            start = last + 1;
+            end = Math.min(mAdapter.getCount(), start + mPrefetchDistance);
+        } else {
+            end = first;
+            start = Math.max(0, end - mPrefetchDistance);
+        }
+        final BitmapDownloader downloader = BitmapDownloader.getInstance(getContext());
+        for (int i = mPrefetches.size() - 1; i >= 0; i--) {
+            final int index = mPrefetches.keyAt(i);
+            if (index < start || index >= end) {
+                // visible now and loaded by the view, or left behind
+                downloader.cancelDownload(mPrefetches.valueAt(i));
+                mPrefetches.removeAt(i);
+            }
+        }
+        for (int index = start; index < end; index++) {
+            if (mPrefetches.indexOfKey(index) >= 0) {
+                continue;
+            }
+            BitmapWorkerOptions options = mAdapterPrefetch.getPrefetchOptions(index);
+            if (options == null) {
+                continue;
+            }
+            BitmapDownloader.BitmapCallback prefetch = downloader.prefetch(options);
+            if (prefetch != null) {
+                mPrefetches.put(index, prefetch);
+            }
+        }
+    }
+
+    private void cancelPrefetches() {
+        if (mPrefetches.size() > 0) {
+            final BitmapDownloader downloader = BitmapDownloader.getInstance(getContext());
+            for (int i = 0, c = mPrefetches.size(); i < c; i++) {
+                downloader.cancelDownload(mPrefetches.valueAt(i));
+            }
+            mPrefetches.clear();
+        }
+        mPrefetchDirection = 0;
+    }
+
+    /**
+     * Sets how many items past the visible range have their images prefetched in the direction
+     * of scrolling, the adapter must implement {@link ScrollAdapterPrefetch}.
+     * @param items number of items, 0 to disable prefetching
+     */
+    public void setPrefetchDistance(int items) {
+        if (items < 0) {
+            throw new IllegalArgumentException("Invalid prefetch distance " + items);
+        }
+        mPrefetchDistance = items;
+        if (items == 0) {
+            cancelPrefetches();
+        }
+    }
+
+    public int getPrefetchDistance() {
+        return mPrefetchDistance;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        cancelPrefetches();
+    }
+
     private void fireItemSelected() {
         OnItemSelectedListener listener = getOnItemSelectedListener();
         if (listener != null) {
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.droidlogic.tv.settings.widget;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.droidlogic.tv.settings.util.UriUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Most requested images of the last run, loaded again at start so the first screen finds
+ * them in memory.
+ * <p>
+ * Requests of the front-ends at {@link BitmapWorkerOptions#PRIORITY_VISIBLE} are counted by
+ * source and requested size.  When the UI is hidden the images that made it into the memory
+ * cache are written to a small text file, most used first.  At the next start each front-end
+ * replays its entries at {@link BitmapWorkerOptions#PRIORITY_PREFETCH}, until the estimated
+ * bytes reach a fraction of the memory cache.  Loads still running after
+ * {@link #REPLAY_TIME_BUDGET_MS} are cancelled.  The first visible request of a replayed image
+ * is counted as a warm hit or miss, a hit saves the time the replayed load took.
+ */
+final class WarmStartSnapshot {
+
+    private static final String TAG = "WarmStartSnapshot";
+
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "warm_start";
+    private static final String MAGIC = "droidlogic.WarmStartSnapshot";
+    private static final String VERSION = "1";
+
+    private static final String TYPE_ICON = "i";
+    private static final String TYPE_URI = "u";
+    private static final String NO_CONFIG = "-";
+
+    // requests counted per run, later ones are not tracked
+    private static final int MAX_TRACKED = 256;
+    // entries written to the file
+    private static final int MAX_SAVED = 64;
+    // fraction of the memory cache replayed at start
+    private static final float REPLAY_CACHE_FRACTION = 0.25f;
+    static final long REPLAY_TIME_BUDGET_MS = 5000;
+
+    /**
+     * Issues the loads of a replay for one front-end.
+     */
+    interface Replayer {
+        /**
+         * Loads the image into the memory cache, the front-end reports it with
+         * {@link #recordLoaded}.
+         * @return handle for {@link #cancel}, null if nothing is loaded
+         */
+        Object replay(BitmapWorkerOptions options);
+
+        void cancel(Object handle);
+    }
+
+    /**
+     * Source and requested size of an image, with its use count.
+     */
+    private static final class Entry {
+        final int mNamespace;
+        // TYPE_ICON or TYPE_URI
+        final String mType;
+        // "package resourceName" or the uri
+        final String mSource;
+        final int mWidth;
+        final int mHeight;
+        final Bitmap.Config mConfig;
+        final boolean mAutoConfig;
+        int mUseCount;
+        // bytes in the memory cache, 0 if never loaded into it
+        long mBytes;
+        // replay: uptime the load was issued, duration once loaded, -1 while loading
+        long mReplayStart;
+        long mReplayMs = -1;
+
+        Entry(int namespace, String type, String source, int width, int height,
+                Bitmap.Config config, boolean autoConfig) {
+            mNamespace = namespace;
+            mType = type;
+            mSource = source;
+            mWidth = width;
+            mHeight = height;
+            mConfig = config;
+            mAutoConfig = autoConfig;
+        }
+
+        static Entry from(int namespace, BitmapWorkerOptions options) {
+            final String type;
+            final String source;
+            if (options.getIconResource() != null) {
+                type = TYPE_ICON;
+                source = options.getIconResource().packageName + " "
+                        + options.getIconResource().resourceName;
+            } else {
+                type = TYPE_URI;
+                source = options.getResourceUri().toString();
+            }
+            return new Entry(namespace, type, source, options.getWidth(), options.getHeight(),
+                    options.getBitmapConfig(), options.isAutoBitmapConfig());
+        }
+
+        BitmapWorkerOptions toOptions(Context context) {
+            BitmapWorkerOptions.Builder builder = new BitmapWorkerOptions.Builder(context)
+                    .width(mWidth)
+                    .height(mHeight)
+                    .bitmapConfig(mConfig)
+                    .autoBitmapConfig(mAutoConfig)
+                    .priority(BitmapWorkerOptions.PRIORITY_PREFETCH);
+            if (TYPE_ICON.equals(mType)) {
+                final int space = mSource.indexOf(' ');
+                builder.resource(mSource.substring(0, space), mSource.substring(space + 1));
+            } else {
+                builder.resource(Uri.parse(mSource));
+            }
+            return builder.build();
+        }
+
+        String toLine() {
+            return mNamespace + " " + mUseCount + " " + mBytes + " " + mWidth + " " + mHeight
+                    + " " + (mConfig == null ? NO_CONFIG : mConfig.name()) + " "
+                    + (mAutoConfig ? 1 : 0) + " " + mType + " " + mSource;
+        }
+
+        static Entry fromLine(String line) {
+            String[] parts = line.split(" ", 9);
+            if (parts.length != 9) {
+                throw new IllegalArgumentException("unexpected line: " + line);
+            }
+            Entry entry = new Entry(Integer.parseInt(parts[0]), parts[7], parts[8],
+                    Integer.parseInt(parts[3]), Integer.parseInt(parts[4]),
+                    NO_CONFIG.equals(parts[5]) ? null : Bitmap.Config.valueOf(parts[5]),
+                    "1".equals(parts[6]));
+            entry.mUseCount = Integer.parseInt(parts[1]);
+            entry.mBytes = Long.parseLong(parts[2]);
+            return entry;
+        }
+    }
+
+    private static final Comparator<Entry> MOST_USED_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return Integer.compare(rhs.mUseCount, lhs.mUseCount);
+        }
+    };
+
+    private final Context mContext;
+    private final File mFile;
+    private final long mReplayByteBudget;
+
+    // requests of this run by key, see getKey()
+    private final LongSparseArray<Entry> mEntries = new LongSparseArray<>();
+    // replayed entries whose first visible request is not counted yet
+    private final LongSparseArray<Entry> mReplayed = new LongSparseArray<>();
+    private boolean mDirty;
+
+    private int mReplayCount;
+    private long mReplayBytes;
+    private int mReplayLoadedCount;
+    private int mWarmHitCount;
+    private int mWarmMissCount;
+    private long mSavedMs;
+
+    WarmStartSnapshot(Context context, int memoryCacheSize) {
+        mContext = context;
+        mFile = new File(context.getCacheDir(), FILE_NAME);
+        mReplayByteBudget = (long) (memoryCacheSize * REPLAY_CACHE_FRACTION);
+    }
+
+    private static long getKey(int namespace, BitmapWorkerOptions options) {
+        return ImageKeys.pack(namespace, options.getCacheKeyId(),
+                ImageKeys.getConfigCode(options), options.getWidth(), options.getHeight());
+    }
+
+    private static boolean isRecorded(BitmapWorkerOptions options) {
+        return options.isMemCacheEnabled()
+                && !UriUtils.isAccountImageUri(options.getResourceUri());
+    }
+
+    /**
+     * Counts a visible request of a front-end, called on UI thread.
+     * @param hit true if the image was in the memory cache
+     */
+    void recordRequest(int namespace, BitmapWorkerOptions options, boolean hit) {
+        if (options.getPriority() != BitmapWorkerOptions.PRIORITY_VISIBLE
+                || !isRecorded(options)) {
+            return;
+        }
+        final long key = getKey(namespace, options);
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                if (mEntries.size() >= MAX_TRACKED) {
+                    return;
+                }
+                entry = Entry.from(namespace, options);
+                mEntries.put(key, entry);
+            }
+            entry.mUseCount++;
+            mDirty = true;
+
+            Entry replayed = mReplayed.get(key);
+            if (replayed != null) {
+                mReplayed.remove(key);
+                if (hit && replayed.mReplayMs >= 0) {
+                    mWarmHitCount++;
+                    mSavedMs += replayed.mReplayMs;
+                } else {
+                    mWarmMissCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the bytes of an image added to the memory cache, called on worker threads.
+     */
+    synchronized void recordLoaded(int namespace, BitmapWorkerOptions options, long bytes) {
+        if (!isRecorded(options)) {
+            return;
+        }
+        final long key = getKey(namespace, options);
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            entry.mBytes = bytes;
+        }
+        entry = mReplayed.get(key);
+        if (entry != null && entry.mReplayMs < 0) {
+            entry.mReplayMs = SystemClock.uptimeMillis() - entry.mReplayStart;
+            mReplayLoadedCount++;
+        }
+    }
+
+    /**
+     * Reads the snapshot in background and replays the entries of the namespace on UI thread.
+     * Call once per front-end.
+     */
+    void replay(final int namespace, final Replayer replayer) {
+        new AsyncTask<Void, Void, ArrayList<Entry>>() {
+            @Override
+            protected ArrayList<Entry> doInBackground(Void... params) {
+                return read(namespace);
+            }
+
+            @Override
+            protected void onPostExecute(ArrayList<Entry> entries) {
+                startReplay(entries, replayer);
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void startReplay(ArrayList<Entry> entries, final Replayer replayer) {
+        final ArrayList<Object> handles = new ArrayList<>();
+        long bytes = 0;
+        for (Entry entry : entries) {
+            if (bytes + entry.mBytes > mReplayByteBudget) {
+                continue;
+            }
+            final BitmapWorkerOptions options;
+            try {
+                options = entry.toOptions(mContext);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "dropping entry " + entry.mSource + ": " + e);
+                continue;
+            }
+            final long key = getKey(entry.mNamespace, options);
+            synchronized (this) {
+                entry.mReplayStart = SystemClock.uptimeMillis();
+                mReplayed.put(key, entry);
+            }
+            Object handle = replayer.replay(options);
+            if (handle == null) {
+                // already in memory
+                synchronized (this) {
+                    mReplayed.remove(key);
+                }
+                continue;
+            }
+            handles.add(handle);
+            bytes += entry.mBytes;
+            synchronized (this) {
+                mReplayCount++;
+                mReplayBytes += entry.mBytes;
+            }
+        }
+        if (handles.isEmpty()) {
+            return;
+        }
+        if (DEBUG) {
+            Log.d(TAG, "replaying " + handles.size() + " images, " + bytes + " bytes");
+        }
+        ImageEngine.getInstance(mContext).getMainHandler().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                // over the time budget, stop what is still loading
+                for (int i = 0, c = handles.size(); i < c; i++) {
+                    replayer.cancel(handles.get(i));
+                }
+                Log.i(TAG, WarmStartSnapshot.this.toString());
+            }
+        }, REPLAY_TIME_BUDGET_MS);
+    }
+
+    private ArrayList<Entry> read(int namespace) {
+        ArrayList<Entry> entries = new ArrayList<>();
+        if (!mFile.exists()) {
+            return entries;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile),
+                    StandardCharsets.UTF_8));
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                throw new IOException("unexpected header");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry = Entry.fromLine(line);
+                if (entry.mNamespace == namespace) {
+                    entries.add(entry);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "snapshot is corrupt, removing it", e);
+            mFile.delete();
+            entries.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        // the file is written most used first
+        return entries;
+    }
+
+    /**
+     * Writes the most used images of this run in background, if anything changed since the
+     * last save.
+     */
+    void save() {
+        final ArrayList<Entry> entries = new ArrayList<>();
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            for (int i = 0, c = mEntries.size(); i < c; i++) {
+                Entry entry = mEntries.valueAt(i);
+                if (entry.mBytes > 0) {
+                    entries.add(entry);
+                }
+            }
+        }
+        Collections.sort(entries, MOST_USED_FIRST);
+        final ArrayList<String> lines = new ArrayList<>(Math.min(entries.size(), MAX_SAVED));
+        for (int i = 0, c = Math.min(entries.size(), MAX_SAVED); i < c; i++) {
+            lines.add(entries.get(i).toLine());
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(lines);
+            }
+        });
+    }
+
+    private synchronized void write(ArrayList<String> lines) {
+        final File tmpFile = new File(mFile.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        boolean success = false;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile),
+                    StandardCharsets.UTF_8));
+            writer.write(MAGIC);
+            writer.newLine();
+            writer.write(VERSION);
+            writer.newLine();
+            for (int i = 0, c = lines.size(); i < c; i++) {
+                writer.write(lines.get(i));
+                writer.newLine();
+            }
+            writer.close();
+            writer = null;
+            success = tmpFile.renameTo(mFile);
+        } catch (IOException e) {
+            Log.w(TAG, "failed writing " + tmpFile, e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (!success) {
+                tmpFile.delete();
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "saved " + lines.size() + " entries");
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "WarmStartSnapshot[replayed=%d,replayBytes=%d,loaded=%d,"
+                + "warmHits=%d,warmMisses=%d,savedMs=%d]", mReplayCount, mReplayBytes,
+                mReplayLoadedCount, mWarmHitCount, mWarmMissCount, mSavedMs);
+    }
+}
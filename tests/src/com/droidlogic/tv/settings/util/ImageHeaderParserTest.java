@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.droidlogic.tv.settings.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+@RunWith(JUnit4.class)
+public class ImageHeaderParserTest {
+
+    private static final byte[] PNG_SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A
+    };
+
+    /**
+     * Builds the bytes of an image header.
+     */
+    private static class Header {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        Header bytes(int... values) {
+            for (int value : values) {
+                mOut.write(value);
+            }
+            return this;
+        }
+
+        Header bytes(byte[] values) {
+            mOut.write(values, 0, values.length);
+            return this;
+        }
+
+        Header ascii(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                mOut.write(value.charAt(i));
+            }
+            return this;
+        }
+
+        Header int16BE(int value) {
+            return bytes(value >> 8, value);
+        }
+
+        Header int16LE(int value) {
+            return bytes(value, value >> 8);
+        }
+
+        Header int24LE(int value) {
+            return bytes(value, value >> 8, value >> 16);
+        }
+
+        Header int32BE(int value) {
+            return bytes(value >> 24, value >> 16, value >> 8, value);
+        }
+
+        Header int32LE(int value) {
+            return bytes(value, value >> 8, value >> 16, value >> 24);
+        }
+
+        Header zeros(int count) {
+            return bytes(new byte[count]);
+        }
+
+        byte[] toByteArray() {
+            return mOut.toByteArray();
+        }
+    }
+
+    private static ImageHeaderParser parse(byte[] data) throws IOException {
+        return ImageHeaderParser.parse(new ByteArrayInputStream(data));
+    }
+
+    private static ImageHeaderParser parse(Header header) throws IOException {
+        return parse(header.toByteArray());
+    }
+
+    private static void assertParsed(ImageHeaderParser parser, int type, int width, int height,
+            boolean hasAlpha) {
+        assertNotNull(parser);
+        assertEquals(type, parser.getType());
+        assertEquals(width, parser.getWidth());
+        assertEquals(height, parser.getHeight());
+        assertEquals(hasAlpha, parser.hasAlpha());
+    }
+
+    private static Header png(int width, int height, int colorType) {
+        return new Header().bytes(PNG_SIGNATURE)
+                .int32BE(13).ascii("IHDR").int32BE(width).int32BE(height)
+                // bit depth, color type, compression, filter, interlace, crc
+                .bytes(8, colorType, 0, 0, 0).zeros(4);
+    }
+
+    private static Header jpeg(int width, int height) {
+        return new Header().bytes(0xFF, 0xD8)
+                // APP0 "JFIF\0", version, density and thumbnail size
+                .bytes(0xFF, 0xE0).int16BE(16).ascii("JFIF").zeros(10)
+                // SOF0: precision, height, width, components
+                .bytes(0xFF, 0xC0).int16BE(11).bytes(8).int16BE(height).int16BE(width)
+                .bytes(1, 1, 0x11, 0);
+    }
+
+    private static Header webp(String format) {
+        return new Header().ascii("RIFF").int32LE(0).ascii("WEBP").ascii("VP8" + format)
+                .int32LE(0);
+    }
+
+    @Test
+    public void pngWithAlphaChannel() throws IOException {
+        assertParsed(parse(png(640, 480, 6)), ImageHeaderParser.TYPE_PNG, 640, 480, true);
+        assertParsed(parse(png(1, 2, 4)), ImageHeaderParser.TYPE_PNG, 1, 2, true);
+    }
+
+    @Test
+    public void pngOpaque() throws IOException {
+        Header header = png(320, 200, 2).int32BE(0).ascii("IDAT");
+        assertParsed(parse(header), ImageHeaderParser.TYPE_PNG, 320, 200, false);
+    }
+
+    @Test
+    public void pngSkipsAncillaryChunks() throws IOException {
+        Header header = png(320, 200, 3).int32BE(3).ascii("gAMA").zeros(3 + 4)
+                .int32BE(0).ascii("IDAT");
+        assertParsed(parse(header), ImageHeaderParser.TYPE_PNG, 320, 200, false);
+    }
+
+    @Test
+    public void pngWithTransparencyChunk() throws IOException {
+        Header header = png(320, 200, 3).int32BE(2).ascii("tRNS").zeros(2 + 4)
+                .int32BE(0).ascii("IDAT");
+        assertParsed(parse(header), ImageHeaderParser.TYPE_PNG, 320, 200, true);
+    }
+
+    @Test
+    public void pngTruncatedBeforeFirstImageData() throws IOException {
+        // dimensions are known, alpha is assumed
+        assertParsed(parse(png(320, 200, 2)), ImageHeaderParser.TYPE_PNG, 320, 200, true);
+    }
+
+    @Test
+    public void pngTruncatedHeader() throws IOException {
+        byte[] data = png(640, 480, 6).toByteArray();
+        assertNull(parse(Arrays.copyOf(data, 20)));
+        assertNull(parse(Arrays.copyOf(data, PNG_SIGNATURE.length)));
+        assertNull(parse(Arrays.copyOf(data, 3)));
+    }
+
+    @Test
+    public void pngBadSignature() throws IOException {
+        byte[] data = png(640, 480, 6).toByteArray();
+        data[4] = 0;
+        assertNull(parse(data));
+    }
+
+    @Test
+    public void jpeg() throws IOException {
+        assertParsed(parse(jpeg(1920, 1080)), ImageHeaderParser.TYPE_JPEG, 1920, 1080, false);
+    }
+
+    @Test
+    public void jpegProgressiveWithFillBytes() throws IOException {
+        Header header = new Header().bytes(0xFF, 0xD8)
+                .bytes(0xFF, 0xFF, 0xFF, 0xE1).int16BE(4).zeros(2)
+                .bytes(0xFF, 0xC2).int16BE(11).bytes(8).int16BE(600).int16BE(800);
+        assertParsed(parse(header), ImageHeaderParser.TYPE_JPEG, 800, 600, false);
+    }
+
+    @Test
+    public void jpegSkipsHuffmanTable() throws IOException {
+        // DHT has a marker inside the SOF range
+        Header header = new Header().bytes(0xFF, 0xD8)
+                .bytes(0xFF, 0xC4).int16BE(5).zeros(3)
+                .bytes(0xFF, 0xC0).int16BE(11).bytes(8).int16BE(10).int16BE(20);
+        assertParsed(parse(header), ImageHeaderParser.TYPE_JPEG, 20, 10, false);
+    }
+
+    @Test
+    public void jpegScanBeforeFrame() throws IOException {
+        Header header = new Header().bytes(0xFF, 0xD8).bytes(0xFF, 0xDA).int16BE(2);
+        assertNull(parse(header));
+    }
+
+    @Test
+    public void jpegTruncatedHeader() throws IOException {
+        byte[] data = jpeg(1920, 1080).toByteArray();
+        // inside APP0, before SOF0 and inside SOF0
+        assertNull(parse(Arrays.copyOf(data, 10)));
+        assertNull(parse(Arrays.copyOf(data, 20)));
+        assertNull(parse(Arrays.copyOf(data, data.length - 6)));
+    }
+
+    @Test
+    public void jpegFrameOverProbeLimit() throws IOException {
+        Header header = new Header().bytes(0xFF, 0xD8);
+        for (int i = 0; i < 2; i++) {
+            header.bytes(0xFF, 0xE1).int16BE(0xFFFF).zeros(0xFFFF - 2);
+        }
+        header.bytes(0xFF, 0xC0).int16BE(11).bytes(8).int16BE(10).int16BE(20);
+        assertNull(parse(header));
+    }
+
+    @Test
+    public void webpLossy() throws IOException {
+        Header header = webp(" ").zeros(3).bytes(0x9D, 0x01, 0x2A)
+                // the top two bits of each dimension are the scale
+                .int16LE(0xC000 | 400).int16LE(300);
+        assertParsed(parse(header), ImageHeaderParser.TYPE_WEBP, 400, 300, false);
+    }
+
+    @Test
+    public void webpLossless() throws IOException {
+        final int bits = (400 - 1) | ((300 - 1) << 14);
+        assertParsed(parse(webp("L").bytes(0x2F).int32LE(bits)),
+                ImageHeaderParser.TYPE_WEBP, 400, 300, false);
+        assertParsed(parse(webp("L").bytes(0x2F).int32LE(bits | (1 << 28))),
+                ImageHeaderParser.TYPE_WEBP, 400, 300, true);
+    }
+
+    @Test
+    public void webpExtended() throws IOException {
+        assertParsed(parse(webp("X").bytes(0x10).zeros(3).int24LE(4999).int24LE(2999)),
+                ImageHeaderParser.TYPE_WEBP, 5000, 3000, true);
+        assertParsed(parse(webp("X").bytes(0).zeros(3).int24LE(99).int24LE(49)),
+                ImageHeaderParser.TYPE_WEBP, 100, 50, false);
+    }
+
+    @Test
+    public void webpBadStartCode() throws IOException {
+        assertNull(parse(webp(" ").zeros(3).bytes(0x9D, 0x01, 0x2B).int16LE(400).int16LE(300)));
+    }
+
+    @Test
+    public void webpTruncatedHeader() throws IOException {
+        byte[] data = webp("X").bytes(0x10).zeros(3).int24LE(4999).int24LE(2999)
+                .toByteArray();
+        assertNull(parse(Arrays.copyOf(data, data.length - 1)));
+        assertNull(parse(Arrays.copyOf(data, 12)));
+        assertNull(parse(Arrays.copyOf(data, 6)));
+    }
+
+    @Test
+    public void gif() throws IOException {
+        assertParsed(parse(new Header().ascii("GIF89a").int16LE(500).int16LE(250)),
+                ImageHeaderParser.TYPE_GIF, 500, 250, true);
+        assertParsed(parse(new Header().ascii("GIF87a").int16LE(1).int16LE(1)),
+                ImageHeaderParser.TYPE_GIF, 1, 1, true);
+    }
+
+    @Test
+    public void gifBadVersion() throws IOException {
+        assertNull(parse(new Header().ascii("GIF88a").int16LE(500).int16LE(250)));
+    }
+
+    @Test
+    public void gifTruncatedHeader() throws IOException {
+        assertNull(parse(new Header().ascii("GIF89a").int16LE(500).bytes(250)));
+        assertNull(parse(new Header().ascii("GIF8")));
+    }
+
+    @Test
+    public void zeroDimensions() throws IOException {
+        assertNull(parse(new Header().ascii("GIF89a").int16LE(0).int16LE(250)));
+        assertNull(parse(png(0, 480, 6)));
+    }
+
+    @Test
+    public void unknownFormat() throws IOException {
+        assertNull(parse(new Header().ascii("BM").zeros(52)));
+        assertNull(parse(new byte[0]));
+    }
+
+    @Test
+    public void readsOnlyTheHeader() throws IOException {
+        byte[] data = new Header().bytes(jpeg(16, 16).toByteArray()).zeros(100).toByteArray();
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        assertNotNull(ImageHeaderParser.parse(in));
+        assertEquals(100, in.available());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.droidlogic.tv.settings.widget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ImageKeysTest {
+
+    private static void assertUnpacks(long key, int namespace, int baseId, int configCode,
+            int width, int height) {
+        assertEquals(namespace, ImageKeys.getNamespace(key));
+        assertEquals(baseId, ImageKeys.getBaseId(key));
+        assertEquals(configCode, ImageKeys.getConfigCode(key));
+        assertEquals(width, ImageKeys.getWidth(key));
+        assertEquals(height, ImageKeys.getHeight(key));
+    }
+
+    @Test
+    public void packRoundTrip() {
+        assertUnpacks(ImageKeys.pack(3, 42, 2, 640, 360), 3, 42, 2, 640, 360);
+        assertUnpacks(ImageKeys.pack(42, 1, 5, 7), 0, 42, 1, 5, 7);
+    }
+
+    @Test
+    public void packMinimumDimensions() {
+        assertUnpacks(ImageKeys.pack(0, 1, 0, 0, 0), 0, 1, 0, 0, 0);
+    }
+
+    @Test
+    public void packMaximumDimensions() {
+        // every field at its maximum must not spill into its neighbours
+        final long key = ImageKeys.pack(15, Integer.MAX_VALUE, ImageKeys.CONFIG_CODE_AUTO,
+                4095, 4095);
+        assertUnpacks(key, 15, Integer.MAX_VALUE, ImageKeys.CONFIG_CODE_AUTO, 4095, 4095);
+        assertUnpacks(ImageKeys.pack(0, 1, 0, 4095, 0), 0, 1, 0, 4095, 0);
+        assertUnpacks(ImageKeys.pack(0, 1, 0, 0, 4095), 0, 1, 0, 0, 4095);
+    }
+
+    @Test
+    public void packKeepsKeysPositive() {
+        assertTrue(ImageKeys.pack(15, Integer.MAX_VALUE, 15, 4095, 4095) > 0);
+    }
+
+    @Test
+    public void packDistinguishesFields() {
+        final long key = ImageKeys.pack(1, 7, 1, 100, 200);
+        assertNotEquals(key, ImageKeys.pack(2, 7, 1, 100, 200));
+        assertNotEquals(key, ImageKeys.pack(1, 8, 1, 100, 200));
+        assertNotEquals(key, ImageKeys.pack(1, 7, 2, 100, 200));
+        assertNotEquals(key, ImageKeys.pack(1, 7, 1, 200, 100));
+    }
+
+    @Test
+    public void internIsStable() {
+        final int id = ImageKeys.intern("ImageKeysTest#internIsStable");
+        assertTrue(id > 0);
+        assertEquals(id, ImageKeys.intern("ImageKeysTest#internIsStable"));
+        assertNotEquals(id, ImageKeys.intern("ImageKeysTest#internIsStable2"));
+        assertEquals("ImageKeysTest#internIsStable", ImageKeys.getBaseKey(id));
+    }
+
+    @Test
+    public void getBaseKeyOfUnknownId() {
+        assertNull(ImageKeys.getBaseKey(0));
+        assertNull(ImageKeys.getBaseKey(-1));
+        assertNull(ImageKeys.getBaseKey(Integer.MAX_VALUE));
+    }
+}
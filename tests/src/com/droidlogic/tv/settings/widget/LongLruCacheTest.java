@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.droidlogic.tv.settings.widget;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class LongLruCacheTest {
+
+    /**
+     * Records the keys of evicted entries.
+     */
+    private static class RecordingCache extends LongLruCache<String> {
+        final List<Long> mEvicted = new ArrayList<>();
+
+        RecordingCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, long key, String oldValue,
+                String newValue) {
+            if (evicted) {
+                mEvicted.add(key);
+            }
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyPut() {
+        RecordingCache cache = new RecordingCache(3);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+        cache.put(4, "d");
+        assertArrayEquals(new long[] {2, 3, 4}, cache.keys());
+        assertEquals(1, cache.mEvicted.size());
+        assertEquals(1L, (long) cache.mEvicted.get(0));
+        assertNull(cache.get(1));
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test
+    public void getRefreshesEntry() {
+        RecordingCache cache = new RecordingCache(3);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+        assertEquals("a", cache.get(1));
+        cache.put(4, "d");
+        assertArrayEquals(new long[] {3, 1, 4}, cache.keys());
+        assertNull(cache.peek(2));
+    }
+
+    @Test
+    public void peekKeepsOrder() {
+        RecordingCache cache = new RecordingCache(2);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        assertEquals("a", cache.peek(1));
+        cache.put(3, "c");
+        assertArrayEquals(new long[] {2, 3}, cache.keys());
+        assertEquals(0, cache.hitCount());
+    }
+
+    @Test
+    public void putReplacesWithoutEviction() {
+        RecordingCache cache = new RecordingCache(2);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        assertEquals("a", cache.put(1, "c"));
+        assertArrayEquals(new long[] {2, 1}, cache.keys());
+        assertEquals(0, cache.mEvicted.size());
+        assertEquals("c", cache.get(1));
+    }
+
+    @Test
+    public void evictsBySize() {
+        RecordingCache cache = new RecordingCache(10) {
+            @Override
+            protected int sizeOf(long key, String value) {
+                return value.length();
+            }
+        };
+        cache.put(1, "aaaa");
+        cache.put(2, "bbbb");
+        cache.put(3, "cccccccc");
+        // 16 > 10, the eldest entries go until the size fits
+        assertArrayEquals(new long[] {3}, cache.keys());
+        assertEquals(8, cache.size());
+        assertEquals(2, cache.mEvicted.size());
+        assertEquals(1L, (long) cache.mEvicted.get(0));
+        assertEquals(2L, (long) cache.mEvicted.get(1));
+    }
+
+    @Test
+    public void trimToSizeEvictsEldestFirst() {
+        RecordingCache cache = new RecordingCache(4);
+        for (long key = 1; key <= 4; key++) {
+            cache.put(key, "v" + key);
+        }
+        cache.get(2);
+        cache.trimToSize(2);
+        assertArrayEquals(new long[] {4, 2}, cache.keys());
+        cache.evictAll();
+        assertEquals(0, cache.keys().length);
+        assertEquals(4, cache.mEvicted.size());
+    }
+
+    @Test
+    public void keysBeyondInitialCapacity() {
+        // large keys that only differ in the high bits share buckets before rehashing
+        RecordingCache cache = new RecordingCache(1000);
+        for (long i = 0; i < 500; i++) {
+            cache.put(i << 32, "v" + i);
+        }
+        for (long i = 0; i < 500; i++) {
+            assertEquals("v" + i, cache.get(i << 32));
+        }
+        assertEquals(500, cache.size());
+    }
+}